@@ -0,0 +1,97 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.totango.discoveryagent.gson.ServiceTypeAdapter;
+import com.totango.discoveryagent.model.Service;
+import com.totango.discoveryagent.model.ServiceGroup;
+
+public class Fixtures {
+
+  public static final Type SERVICE_LIST_TYPE = new TypeToken<List<Service>>(){}.getType();
+  
+  public static final String SERVICE_NAME = "billing";
+  
+  private static final int LARGEST_FIXTURE = 1000;
+  
+  private static final String HEALTH_FIXTURE = "v1_health_service_billing-%d-services.json";
+  
+  private static final Gson GSON = new GsonBuilder()
+      .registerTypeAdapter(Service.class, new ServiceTypeAdapter())
+      .create();
+  
+  // Responses larger than the largest checked-in fixture are built by repeating it,
+  // which keeps the parse work identical without checking in multi-megabyte files
+  public static byte[] healthResponse(int instances) {
+    if (instances <= LARGEST_FIXTURE) {
+      return load(String.format(HEALTH_FIXTURE, instances));
+    }
+    
+    String fixture = new String(load(String.format(HEALTH_FIXTURE, LARGEST_FIXTURE)), StandardCharsets.UTF_8);
+    String entries = fixture.substring(1, fixture.length() - 1);
+    StringBuilder builder = new StringBuilder(fixture.length() * (instances / LARGEST_FIXTURE) + 2);
+    builder.append('[');
+    for (int i = 0; i < instances / LARGEST_FIXTURE; i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append(entries);
+    }
+    builder.append(']');
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+  
+  public static List<Service> services(int instances) {
+    byte[] response = healthResponse(instances);
+    return GSON.fromJson(new InputStreamReader(new ByteArrayInputStream(response),
+        StandardCharsets.UTF_8), SERVICE_LIST_TYPE);
+  }
+  
+  public static ServiceGroup serviceGroup(int instances, String index) {
+    return new ServiceGroup(services(instances), Optional.of(index));
+  }
+  
+  private static byte[] load(String resourceName) {
+    try (InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(resourceName)) {
+      if (in == null) {
+        throw new IllegalArgumentException("Missing fixture " + resourceName);
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.benchmarks;
+
+import static com.totango.discoveryagent.benchmarks.Fixtures.SERVICE_LIST_TYPE;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.totango.discoveryagent.gson.ServiceDeserializer;
+import com.totango.discoveryagent.gson.ServiceTypeAdapter;
+import com.totango.discoveryagent.model.Service;
+
+/**
+ * Deserialization of /v1/health/service responses. Run with {@code -prof gc} to get the
+ * allocation rate per operation next to the parse time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HealthResponseParseBenchmark {
+
+  @Param({"10", "100", "1000", "5000"})
+  public int instances;
+  
+  private byte[] response;
+  
+  private Gson streamingGson;
+  
+  private Gson treeGson;
+  
+  @SuppressWarnings("deprecation")
+  @Setup
+  public void setup() {
+    response = Fixtures.healthResponse(instances);
+    streamingGson = new GsonBuilder()
+        .registerTypeAdapter(Service.class, new ServiceTypeAdapter())
+        .create();
+    treeGson = new GsonBuilder()
+        .registerTypeAdapter(Service.class, new ServiceDeserializer())
+        .create();
+  }
+  
+  @Benchmark
+  public List<Service> streamingTypeAdapter() {
+    InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8);
+    return streamingGson.fromJson(reader, SERVICE_LIST_TYPE);
+  }
+  
+  @Benchmark
+  public List<Service> jsonDeserializerFromString() {
+    String body = new String(response, StandardCharsets.UTF_8);
+    return treeGson.fromJson(body, SERVICE_LIST_TYPE);
+  }
+}
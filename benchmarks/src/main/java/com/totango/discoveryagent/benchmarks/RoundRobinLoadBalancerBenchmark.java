@@ -0,0 +1,95 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.benchmarks;
+
+import static com.totango.discoveryagent.benchmarks.Fixtures.SERVICE_NAME;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.totango.discoveryagent.DiscoveryService;
+import com.totango.discoveryagent.NoServiceAvailable;
+import com.totango.discoveryagent.RoundRobinCounter;
+import com.totango.discoveryagent.RoundRobinLoadBalancer;
+
+/**
+ * Endpoint picks under contention. All the threads share one balancer, like request threads
+ * of a proxy tier do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundRobinLoadBalancerBenchmark {
+
+  @Param({"10", "100"})
+  public int instances;
+  
+  @Param({"shared", "striped"})
+  public String counter;
+  
+  private RoundRobinLoadBalancer balancer;
+  
+  @Setup
+  public void setup() throws IOException {
+    StubConsulClient consulClient = new StubConsulClient(Fixtures.serviceGroup(instances, "1"));
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.SECONDS);
+    RoundRobinCounter roundRobinCounter = "shared".equals(counter)
+        ? RoundRobinCounter.shared() : RoundRobinCounter.striped();
+    balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME, roundRobinCounter);
+    balancer.init();
+  }
+  
+  @Benchmark
+  @Threads(1)
+  public String withNextEndpoint1Thread() throws NoServiceAvailable {
+    return balancer.withNextEndpoint((host, port) -> host);
+  }
+  
+  @Benchmark
+  @Threads(4)
+  public String withNextEndpoint4Threads() throws NoServiceAvailable {
+    return balancer.withNextEndpoint((host, port) -> host);
+  }
+  
+  @Benchmark
+  @Threads(16)
+  public String withNextEndpoint16Threads() throws NoServiceAvailable {
+    return balancer.withNextEndpoint((host, port) -> host);
+  }
+  
+  @Benchmark
+  @Threads(64)
+  public String withNextEndpoint64Threads() throws NoServiceAvailable {
+    return balancer.withNextEndpoint((host, port) -> host);
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.totango.discoveryagent.model.Service;
+import com.totango.discoveryagent.model.ServiceGroup;
+
+/**
+ * Change detection between two separately parsed health responses, which is what the watch
+ * loop does on every blocking-query wakeup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceGroupEqualsBenchmark {
+
+  @Param({"10", "100", "1000", "5000"})
+  public int instances;
+  
+  private ServiceGroup last;
+  
+  private ServiceGroup unchanged;
+  
+  private ServiceGroup indexOnlyChanged;
+  
+  private ServiceGroup lastInstanceChanged;
+  
+  @Setup
+  public void setup() {
+    last = Fixtures.serviceGroup(instances, "100");
+    unchanged = Fixtures.serviceGroup(instances, "100");
+    indexOnlyChanged = Fixtures.serviceGroup(instances, "101");
+    
+    List<Service> services = new ArrayList<>(Fixtures.services(instances));
+    Service lastService = services.get(services.size() - 1);
+    services.set(services.size() - 1, new Service(lastService.getNode(), lastService.getNodeAddress(),
+        lastService.getServiceId(), lastService.getServiceName(), Arrays.asList("jvm"),
+        lastService.getServiceAddress(), lastService.getServicePort()));
+    lastInstanceChanged = new ServiceGroup(services, Optional.of("100"));
+  }
+  
+  @Benchmark
+  public boolean unchanged() {
+    return last.equals(unchanged);
+  }
+  
+  @Benchmark
+  public boolean indexOnlyChanged() {
+    return last.equals(indexOnlyChanged);
+  }
+  
+  @Benchmark
+  public boolean lastInstanceChanged() {
+    return last.equals(lastInstanceChanged);
+  }
+}
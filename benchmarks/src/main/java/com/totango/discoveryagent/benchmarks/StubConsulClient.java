@@ -0,0 +1,78 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.benchmarks;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+
+import com.totango.discoveryagent.ConsulClient;
+import com.totango.discoveryagent.ServiceRequest;
+import com.totango.discoveryagent.model.ServiceGroup;
+
+/**
+ * Answers from a fixture instead of a Consul agent. Blocking queries with a known index wait
+ * like an agent with no changes would, so background watches do not spin during a benchmark.
+ */
+public class StubConsulClient extends ConsulClient {
+
+  private static final long WAIT_TIME_IN_MS = 1000;
+  
+  // Completes the asynchronous queries, which wait without holding a thread like real calls do
+  private static final ScheduledExecutorService AGENT = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "stub-consul-agent");
+    thread.setDaemon(true);
+    return thread;
+  });
+  
+  private final ServiceGroup serviceGroup;
+
+  public StubConsulClient(ServiceGroup serviceGroup) {
+    super(new OkHttpClient(), null, "localhost", 8500, 1);
+    this.serviceGroup = serviceGroup;
+  }
+  
+  @Override
+  public Optional<ServiceGroup> discoverService(String serviceName) throws IOException {
+    return Optional.of(serviceGroup);
+  }
+
+  @Override
+  public Optional<ServiceGroup> discoverService(ServiceRequest request) throws IOException {
+    if (!"0".equals(request.index())) {
+      try {
+        Thread.sleep(WAIT_TIME_IN_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return Optional.of(serviceGroup);
+  }
+  
+  @Override
+  public CompletableFuture<Optional<ServiceGroup>> discoverServiceAsync(ServiceRequest request) {
+    CompletableFuture<Optional<ServiceGroup>> future = new CompletableFuture<>();
+    long wait = "0".equals(request.index()) ? 0 : WAIT_TIME_IN_MS;
+    AGENT.schedule(() -> future.complete(Optional.of(serviceGroup)), wait, TimeUnit.MILLISECONDS);
+    return future;
+  }
+}
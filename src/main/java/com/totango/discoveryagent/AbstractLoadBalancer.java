@@ -0,0 +1,197 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rx.Subscription;
+import rx.functions.Action1;
+
+import com.totango.discoveryagent.RoundRobinLoadBalancer.Function2;
+import com.totango.discoveryagent.model.Service;
+
+/**
+ * Keeps an {@link EndpointSnapshot} of a service up to date from a {@link DiscoveryService} and
+ * calls the caller's function with the endpoint picked by the subclass.
+ */
+abstract class AbstractLoadBalancer implements LoadBalancer {
+
+  private static final Logger Logger =  LoggerFactory.getLogger(AbstractLoadBalancer.class);
+  
+  // Replaced as a whole on every update so a pick never sees a half updated list
+  private volatile EndpointSnapshot endpoints = EndpointSnapshot.EMPTY;
+  
+  @SuppressWarnings("unused")
+  private Subscription discoverySubscription;
+  
+  protected final String serviceName;
+
+  protected final DiscoveryService discoveryService;
+  
+  private volatile OutlierEjection outlierEjection;
+  
+  private volatile DiscoveryMetrics metrics = DiscoveryMetrics.NONE;
+
+  AbstractLoadBalancer(DiscoveryService discoveryService, String serviceName) {
+    this.serviceName = serviceName;
+    this.discoveryService = discoveryService;
+  }
+  
+  public void init() throws IOException {
+    update(discover());
+    this.discoverySubscription = listen(this::update, throwable -> {
+      Logger.error(String.format("Failed to listen for \"%s\" service", serviceName), throwable);
+    });
+  }
+  
+  List<Service> discover() throws IOException {
+    return discoveryService.getServices(serviceName);
+  }
+  
+  Subscription listen(Action1<List<Service>> onNext, Action1<Throwable> onError) {
+    return discoveryService.subscribe(serviceName, onNext, onError);
+  }
+  
+  /**
+   * Ejects endpoints on which the caller's function keeps failing, see {@link OutlierEjection}.
+   */
+  public void enableOutlierEjection(OutlierEjection outlierEjection) {
+    this.outlierEjection = outlierEjection;
+  }
+  
+  /**
+   * Reports every pick, by endpoint, and every time there was no endpoint to pick.
+   */
+  public void enableMetrics(DiscoveryMetrics metrics) {
+    this.metrics = metrics;
+  }
+  
+  void update(List<Service> services) {
+    this.endpoints = snapshot(services, endpoints);
+  }
+  
+  EndpointSnapshot snapshot(List<Service> services, EndpointSnapshot previous) {
+    return new EndpointSnapshot(services, previous);
+  }
+  
+  EndpointSnapshot endpoints() {
+    return endpoints;
+  }
+  
+  public <T> T withNextEndpoint(Function2<String, Integer, T> func) throws NoServiceAvailable  {
+    EndpointSnapshot snapshot = endpoints;
+    int i = nextEndpoint(snapshot);
+    EndpointStats stats = snapshot.stats(i);
+    long started = callStarted(stats);
+    try {
+      T result = func.apply(snapshot.address(i), snapshot.port(i));
+      succeeded(stats, started);
+      return result;
+    } catch (Throwable t) {
+      failed(stats, started, t);
+      throw t;
+    }
+  }
+  
+  public <T> T withNextAddress(Function<InetSocketAddress, T> func) throws NoServiceAvailable  {
+    EndpointSnapshot snapshot = endpoints;
+    int i = nextEndpoint(snapshot);
+    EndpointStats stats = snapshot.stats(i);
+    long started = callStarted(stats);
+    try {
+      T result = func.apply(snapshot.socketAddress(i));
+      succeeded(stats, started);
+      return result;
+    } catch (Throwable t) {
+      failed(stats, started, t);
+      throw t;
+    }
+  }
+  
+  private int nextEndpoint(EndpointSnapshot snapshot) throws NoServiceAvailable {
+    if (snapshot.isEmpty()) {
+      metrics.noServiceAvailable(serviceName);
+      throw new NoServiceAvailable(String.format("There is no \"%s\" service available", serviceName));
+    }
+    int i = choose(snapshot);
+    OutlierEjection ejection = outlierEjection;
+    if (ejection != null && ejection.isEjected(snapshot.stats(i))) {
+      i = nextNotEjected(snapshot, i, ejection);
+    }
+    metrics.picked(serviceName, snapshot.key(i));
+    return i;
+  }
+  
+  boolean isEjected(EndpointStats stats) {
+    OutlierEjection ejection = outlierEjection;
+    return ejection != null && ejection.isEjected(stats);
+  }
+  
+  // When all the endpoints are ejected the chosen one is used anyway, a call that may
+  // succeed is better than no call at all
+  private int nextNotEjected(EndpointSnapshot snapshot, int chosen, OutlierEjection ejection) {
+    int size = snapshot.size();
+    for (int n = 1; n < size; n++) {
+      int i = (chosen + n) % size;
+      if (!ejection.isEjected(snapshot.stats(i))) {
+        return i;
+      }
+    }
+    return chosen;
+  }
+  
+  private void succeeded(EndpointStats stats, long started) {
+    callEnded(stats, started, null);
+    OutlierEjection ejection = outlierEjection;
+    if (ejection != null) {
+      ejection.recordSuccess(stats);
+    }
+  }
+  
+  private void failed(EndpointStats stats, long started, Throwable failure) {
+    callEnded(stats, started, failure);
+    OutlierEjection ejection = outlierEjection;
+    if (ejection != null) {
+      ejection.recordFailure(stats);
+    }
+  }
+  
+  /**
+   * @return the index of the endpoint to call, the snapshot is never empty
+   */
+  abstract int choose(EndpointSnapshot snapshot);
+  
+  /**
+   * @return a value handed back to {@link #callEnded}, like the start time of the call
+   */
+  long callStarted(EndpointStats stats) {
+    return 0;
+  }
+  
+  /**
+   * @param started the value returned by {@link #callStarted}
+   * @param failure the exception thrown by the caller's function or null if it succeeded
+   */
+  void callEnded(EndpointStats stats, long started, Throwable failure) {
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import okio.Buffer;
+
+/**
+ * A 64 bit FNV-1a hash of a buffered response body. The bytes are read in place from the
+ * buffer segments and the hasher is reused per thread, so hashing allocates nothing.
+ */
+final class BodyHash extends OutputStream {
+
+  private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+  
+  private static final long PRIME = 0x100000001b3L;
+  
+  private static final ThreadLocal<BodyHash> HASHERS = ThreadLocal.withInitial(BodyHash::new);
+  
+  private long hash;
+  
+  private BodyHash() {
+  }
+  
+  static long of(Buffer buffer) throws IOException {
+    BodyHash hasher = HASHERS.get();
+    hasher.hash = OFFSET_BASIS;
+    buffer.copyTo(hasher, 0, buffer.size());
+    return hasher.hash;
+  }
+  
+  @Override
+  public void write(byte[] bytes, int offset, int length) {
+    long h = hash;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= PRIME;
+    }
+    hash = h;
+  }
+  
+  @Override
+  public void write(int b) {
+    hash = (hash ^ (b & 0xff)) * PRIME;
+  }
+}
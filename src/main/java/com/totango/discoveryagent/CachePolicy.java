@@ -0,0 +1,98 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long services returned by getServices() are trusted when no subscription keeps them up to
+ * date. Within the TTL they are returned as they are. Past it they are still returned, for the
+ * stale-while-revalidate time, while they are refreshed in the background. Past that a caller
+ * refreshes them itself, and if Consul cannot be reached they are returned until they reach the
+ * max staleness, after which the failure is thrown.
+ */
+public class CachePolicy {
+
+  static final CachePolicy NONE = new CachePolicy(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+  
+  private final long ttlNanos;
+  
+  // The TTL plus the stale-while-revalidate time
+  private final long revalidateNanos;
+  
+  private final long maxStalenessNanos;
+  
+  private CachePolicy(long ttlNanos, long revalidateNanos, long maxStalenessNanos) {
+    this.ttlNanos = ttlNanos;
+    this.revalidateNanos = revalidateNanos;
+    this.maxStalenessNanos = maxStalenessNanos;
+  }
+  
+  boolean isFresh(long ageNanos) {
+    return ageNanos < ttlNanos;
+  }
+  
+  boolean canRevalidateInBackground(long ageNanos) {
+    return ageNanos < revalidateNanos;
+  }
+  
+  boolean canServeStale(long ageNanos) {
+    return ageNanos < maxStalenessNanos;
+  }
+  
+  public static final Builder policy() {
+    return new Builder();
+  }
+  
+  public static class Builder {
+    
+    private long ttlNanos = TimeUnit.SECONDS.toNanos(30);
+    
+    private long staleWhileRevalidateNanos = TimeUnit.SECONDS.toNanos(30);
+    
+    private long maxStalenessNanos = TimeUnit.MINUTES.toNanos(10);
+    
+    public Builder ttl(long duration, TimeUnit unit) {
+      this.ttlNanos = unit.toNanos(duration);
+      return this;
+    }
+    
+    public Builder staleWhileRevalidate(long duration, TimeUnit unit) {
+      this.staleWhileRevalidateNanos = unit.toNanos(duration);
+      return this;
+    }
+    
+    public Builder maxStaleness(long duration, TimeUnit unit) {
+      this.maxStalenessNanos = unit.toNanos(duration);
+      return this;
+    }
+    
+    public CachePolicy build() {
+      if (ttlNanos <= 0 || staleWhileRevalidateNanos < 0) {
+        throw new IllegalArgumentException("TTL should be positive and stale-while-revalidate should not be negative");
+      }
+      long revalidateNanos = ttlNanos + staleWhileRevalidateNanos;
+      if (revalidateNanos < 0) {
+        revalidateNanos = Long.MAX_VALUE;
+      }
+      if (maxStalenessNanos < revalidateNanos) {
+        throw new IllegalArgumentException("Max staleness should be at least the TTL plus stale-while-revalidate");
+      }
+      return new CachePolicy(ttlNanos, revalidateNanos, maxStalenessNanos);
+    }
+  }
+}
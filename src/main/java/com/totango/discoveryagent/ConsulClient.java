@@ -17,23 +17,43 @@
 package com.totango.discoveryagent;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.totango.discoveryagent.model.Service;
 import com.totango.discoveryagent.model.ServiceGroup;
 import com.totango.discoveryagent.model.Value;
+import com.totango.discoveryagent.model.ValueGroup;
 
 public class ConsulClient {
   
@@ -41,24 +61,43 @@ public class ConsulClient {
   
   private static final String SERVICE_HEALTH_URL_ENDPOINT = "http://%s:%d/v1/health/service/%s?passing";
   
-  private static final String SERVICE_HEALTH_WAIT_URL_ENDPOINT = "http://%s:%d/v1/health/service/%s?index=%s&wait=%ds&passing";
+  private static final String SERVICE_HEALTH_WAIT_URL_ENDPOINT = "http://%s:%d/v1/health/service/%s?index=%s&wait=%ds%s&passing";
   
-  private static final String SERVICE_HEALTH_WITH_TAG_URL_ENDPOINT = "http://%s:%d/v1/health/service/%s?index=%s&tag=%s&wait=%ds&passing";
+  private static final String SERVICE_CATALOG_WAIT_URL_ENDPOINT = "http://%s:%d/v1/catalog/service/%s?index=%s&wait=%ds%s";
   
   private static final String KEY_VALUE_URL_ENDPOINT = "http://%s:%d/v1/kv/%s?passing";
   
   private static final String KEY_VALUE_WAIT_URL_ENDPOINT = "http://%s:%d/v1/kv/%s?index=%s&wait=%ds&passing";
   
+  private static final String KEY_VALUE_RECURSE_WAIT_URL_ENDPOINT = "http://%s:%d/v1/kv/%s?recurse&index=%s&wait=%ds";
+  
   private static final String DATACENTER_URL_ENDPOINT = "http://%s:%d/v1/catalog/datacenters";
   
+  // The names the calls are reported under to the metrics
+  private static final String HEALTH_SERVICE = "health/service";
+  
+  private static final String CATALOG_SERVICE = "catalog/service";
+  
+  private static final String KV = "kv";
+  
+  private static final String KV_RECURSE = "kv/recurse";
+  
+  private static final String CATALOG_DATACENTERS = "catalog/datacenters";
+  
   private static final String INDEX_HEADER_NAME = "X-Consul-Index";
   
+  private static final int HTTP_NOT_FOUND = 404;
+  
   public static final Type SERVICE_LIST_TYPE = new TypeToken<List<Service>>(){}.getType();
   
   public static final Type VALUE_LIST_TYPE = new TypeToken<List<Value>>(){}.getType();
   
   public static final Type DC_LIST_TYPE = new TypeToken<List<String>>(){}.getType();
   
+  // Every watch keeps one asynchronous call in flight to the same agent, and OkHttp holds one of
+  // its dispatcher threads for every call in flight, so this also bounds those threads
+  static final int ASYNC_CALLS_PER_HOST = 256;
+  
   private final OkHttpClient okClient;
   
   private final Gson gson;
@@ -68,42 +107,132 @@ public class ConsulClient {
   private final int port;
 
   private int waitTimeInSec;
+  
+  private final double waitJitter;
+  
+  // The last parsed body of every watched request
+  private final Map<ServiceRequest, ParsedBody> parsedBodies = new ConcurrentHashMap<>();
+  
+  private volatile DiscoveryMetrics metrics = DiscoveryMetrics.NONE;
 
   public ConsulClient(OkHttpClient okClient, Gson gson, String host, int port, int waitTimeInSec) {
-    this.okClient = okClient;
+    this(okClient, gson, host, port, waitTimeInSec, 0);
+  }
+  
+  /**
+   * Every watch of a DiscoveryService keeps one asynchronous call in flight, and OkHttp runs
+   * every call in flight on a thread of its dispatcher, so each watch costs one thread while it
+   * waits for Consul. Calls past the max requests per host of the dispatcher are queued until
+   * another one ends, so it should allow at least as many calls as there are watched services,
+   * keys and prefixes. A dispatcher left at the OkHttp default of 5 per host is replaced by one
+   * that allows 256, on the same executor, a dispatcher configured by the caller is kept as is.
+   * 
+   * @param waitJitter the fraction, between 0 and 1, by which the wait time of every blocking
+   * query is randomly shortened so watches started together do not all wake up together
+   */
+  public ConsulClient(OkHttpClient okClient, Gson gson, String host, int port, int waitTimeInSec,
+      double waitJitter) {
+    this.okClient = withAsyncCallsPerHost(okClient);
     this.gson = gson;
     this.host = host;
     this.port = port;    
     this.waitTimeInSec = waitTimeInSec;
+    this.waitJitter = waitJitter;
+  }
+  
+  // OkHttp queues asynchronous calls past 5 per host by default, watches would wait for each other
+  private static OkHttpClient withAsyncCallsPerHost(OkHttpClient okClient) {
+    Dispatcher given = okClient.dispatcher();
+    if (given.getMaxRequestsPerHost() != new Dispatcher().getMaxRequestsPerHost()) {
+      return okClient;
+    }
+    Logger.info("Raising the OkHttp dispatcher limit from {} to {} calls per host, one per watch",
+        given.getMaxRequestsPerHost(), ASYNC_CALLS_PER_HOST);
+    Dispatcher dispatcher = new Dispatcher(given.executorService());
+    dispatcher.setMaxRequests(Math.max(ASYNC_CALLS_PER_HOST, given.getMaxRequests()));
+    dispatcher.setMaxRequestsPerHost(ASYNC_CALLS_PER_HOST);
+    return okClient.newBuilder().dispatcher(dispatcher).build();
+  }
+  
+  /**
+   * Reports the latency of every call and the time spent parsing the responses.
+   */
+  public void enableMetrics(DiscoveryMetrics metrics) {
+    this.metrics = metrics;
   }
   
   public Optional<ServiceGroup> discoverService(String serviceName) throws IOException {
     String url = String.format(SERVICE_HEALTH_URL_ENDPOINT, host, port, serviceName);
-    return getServiceGroup(url, serviceName);
+    return toServiceGroup(execute(HEALTH_SERVICE, url), HEALTH_SERVICE, serviceName, null, null);
   }
   
   public Optional<ServiceGroup> discoverService(ServiceRequest request) throws IOException {
     String url = buildDiscoverServiceUrl(request);
-    return getServiceGroup(url, request.serviceName());
+    String endpoint = serviceEndpoint(request);
+    return toServiceGroup(execute(endpoint, url), endpoint, request.serviceName(), request.datacenter(),
+        bodyKey(request));
+  }
+  
+  /**
+   * Same as {@link #discoverService(ServiceRequest)} without blocking the calling thread.
+   * Cancelling the returned future cancels the HTTP call.
+   */
+  public CompletableFuture<Optional<ServiceGroup>> discoverServiceAsync(ServiceRequest request) {
+    String url = buildDiscoverServiceUrl(request);
+    String endpoint = serviceEndpoint(request);
+    return executeAsync(endpoint, url, response -> toServiceGroup(response, endpoint, request.serviceName(),
+        request.datacenter(), bodyKey(request)));
+  }
+  
+  private static String serviceEndpoint(ServiceRequest request) {
+    return request.catalog() ? CATALOG_SERVICE : HEALTH_SERVICE;
   }
   
   private String buildDiscoverServiceUrl(ServiceRequest request) {
-    if (request.tag() == null) {
-      return String.format(SERVICE_HEALTH_WAIT_URL_ENDPOINT, host, port, request.serviceName(), request.index(), waitTimeInSec);
+    String format = request.catalog() ? SERVICE_CATALOG_WAIT_URL_ENDPOINT : SERVICE_HEALTH_WAIT_URL_ENDPOINT;
+    return String.format(format, host, port, request.serviceName(), request.index(), waitTime(),
+        optionalParams(request));
+  }
+  
+  private int waitTime() {
+    if (waitJitter == 0) {
+      return waitTimeInSec;
     }
-    
-    return String.format(SERVICE_HEALTH_WITH_TAG_URL_ENDPOINT, host, port,
-        request.serviceName(), request.index(), request.tag(), waitTimeInSec);
+    int jitter = (int) (waitTimeInSec * waitJitter * ThreadLocalRandom.current().nextDouble());
+    return Math.max(waitTimeInSec - jitter, 1);
   }
-
-  private Optional<ServiceGroup> getServiceGroup(String url, String serviceName) throws IOException {
-    Request request = new Request.Builder()
-      .url(url)
-      .build();
-    
-    Response response = okClient.newCall(request).execute();
+  
+  // Consul filters the instances itself so the ones left out are never sent
+  private static String optionalParams(ServiceRequest request) {
+    StringBuilder params = new StringBuilder();
+    for (String tag : request.tags()) {
+      params.append("&tag=").append(encode(tag));
+    }
+    request.nodeMeta().forEach((key, value) -> {
+      params.append("&node-meta=").append(encode(key + ':' + value));
+    });
+    if (request.filter() != null) {
+      params.append("&filter=").append(encode(request.filter()));
+    }
+    if (request.datacenter() != null) {
+      params.append("&dc=").append(encode(request.datacenter()));
+    }
+    return params.toString();
+  }
+  
+  private static String encode(String param) {
+    try {
+      return URLEncoder.encode(param, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  private Optional<ServiceGroup> toServiceGroup(Response response, String endpoint, String serviceName,
+      String datacenter, ServiceRequest bodyKey) throws IOException {
     if (response.isSuccessful()) {
-      return toServiceGroup(response);
+      return bodyKey == null ? parseServiceGroup(response, endpoint, datacenter)
+          : parseChangedServiceGroup(response, endpoint, datacenter, bodyKey);
     } else {
       Logger.warn(String.format("Failed to get service: %s, status-code: %s, message: %s",
           serviceName, response.code(), response.body().string()));
@@ -111,36 +240,166 @@ public class ConsulClient {
     return Optional.empty();
   }
   
-  private Optional<ServiceGroup> toServiceGroup(Response response) throws IOException {
+  private Optional<ServiceGroup> parseServiceGroup(Response response, String endpoint, String datacenter)
+      throws IOException {
     Optional<String> responseIndex = Optional.ofNullable(response.header(INDEX_HEADER_NAME));
-    String message = response.body().string();
-    List<Service> serviceList = gson.fromJson(message, SERVICE_LIST_TYPE);
+    List<Service> serviceList = fromJson(response, SERVICE_LIST_TYPE, endpoint);
     
     return Optional.ofNullable(serviceList)
       .map(services -> {
-        return new ServiceGroup(services, responseIndex);
+        return new ServiceGroup(withDatacenter(services, datacenter), responseIndex);
       });
   }
   
+  /**
+   * Forgets the last parsed body of the request.
+   */
+  void forget(ServiceRequest request) {
+    parsedBodies.remove(bodyKey(request));
+  }
+  
+  private static ServiceRequest bodyKey(ServiceRequest request) {
+    return "0".equals(request.index()) ? request : request.toBuilder().lastUpdateIndex("0").build();
+  }
+  
+  // A blocking query often wakes up with the same body, so the body is hashed first and only
+  // parsed when the hash is new. The body is buffered whole for that instead of being parsed as
+  // it is read. A body that only differs in fields Service does not hold, like the output of a
+  // check or a ModifyIndex, has to be parsed, but the last list is returned when the parsed one
+  // is equal so the services still look unchanged
+  private Optional<ServiceGroup> parseChangedServiceGroup(Response response, String endpoint,
+      String datacenter, ServiceRequest bodyKey) throws IOException {
+    Optional<String> responseIndex = Optional.ofNullable(response.header(INDEX_HEADER_NAME));
+    long start = System.nanoTime();
+    long size = 0;
+    try (ResponseBody body = response.body()) {
+      BufferedSource source = body.source();
+      source.request(Long.MAX_VALUE);
+      Buffer buffer = source.buffer();
+      size = buffer.size();
+      long hash = BodyHash.of(buffer);
+      
+      ParsedBody last = parsedBodies.get(bodyKey);
+      if (last != null && last.hash == hash && last.size == size) {
+        return Optional.of(new ServiceGroup(last.services, responseIndex));
+      }
+      
+      List<Service> serviceList = gson.fromJson(body.charStream(), SERVICE_LIST_TYPE);
+      if (serviceList == null) {
+        return Optional.empty();
+      }
+      List<Service> services = withDatacenter(serviceList, datacenter);
+      if (last != null && last.services.equals(services)) {
+        services = last.services;
+      }
+      parsedBodies.put(bodyKey, new ParsedBody(hash, size, services));
+      return Optional.of(new ServiceGroup(services, responseIndex));
+    } finally {
+      metrics.parsed(endpoint, System.nanoTime() - start, size);
+    }
+  }
+  
+  private static final class ParsedBody {
+    
+    private final long hash;
+    
+    private final long size;
+    
+    private final List<Service> services;
+    
+    ParsedBody(long hash, long size, List<Service> services) {
+      this.hash = hash;
+      this.size = size;
+      this.services = services;
+    }
+  }
+  
+  // Older agents do not report the datacenter of a node, the requested one is used instead
+  private List<Service> withDatacenter(List<Service> services, String datacenter) {
+    if (datacenter == null) {
+      return services;
+    }
+    for (int i = 0; i < services.size(); i++) {
+      Service service = services.get(i);
+      if (service.getDatacenter() == null) {
+        services.set(i, service.withDatacenter(datacenter));
+      }
+    }
+    return services;
+  }
+  
   public Optional<Value> keyValue(String key) throws IOException {
     String url = String.format(KEY_VALUE_URL_ENDPOINT, host, port, key);
     return value(url, key);
   }
   
   public Optional<Value> keyValue(String key, String index) throws IOException {
-    String url = String.format(KEY_VALUE_WAIT_URL_ENDPOINT, host, port, key, index, waitTimeInSec);
+    String url = String.format(KEY_VALUE_WAIT_URL_ENDPOINT, host, port, key, index, waitTime());
     return value(url, key);
   }
   
+  public CompletableFuture<Optional<Value>> keyValueAsync(String key) {
+    String url = String.format(KEY_VALUE_URL_ENDPOINT, host, port, key);
+    return executeAsync(KV, url, response -> toValue(response, key));
+  }
+  
+  public CompletableFuture<Optional<Value>> keyValueAsync(String key, String index) {
+    String url = String.format(KEY_VALUE_WAIT_URL_ENDPOINT, host, port, key, index, waitTime());
+    return executeAsync(KV, url, response -> toValue(response, key));
+  }
+  
+  /**
+   * Like {@link #keyValue(String, String)} but also returns the index to block on next, which
+   * is known even when the key does not exist. The group holds the value, if there is one.
+   */
+  public Optional<ValueGroup> keyValueGroup(String key, String index) throws IOException {
+    String url = String.format(KEY_VALUE_WAIT_URL_ENDPOINT, host, port, key, index, waitTime());
+    return toValueGroup(execute(KV, url), key, KV);
+  }
+  
+  public CompletableFuture<Optional<ValueGroup>> keyValueGroupAsync(String key, String index) {
+    String url = String.format(KEY_VALUE_WAIT_URL_ENDPOINT, host, port, key, index, waitTime());
+    return executeAsync(KV, url, response -> toValueGroup(response, key, KV));
+  }
+  
+  /**
+   * @return all the values under the prefix, blocks until the index changes or the wait time passes
+   */
+  public Optional<ValueGroup> keyValues(String prefix, String index) throws IOException {
+    String url = String.format(KEY_VALUE_RECURSE_WAIT_URL_ENDPOINT, host, port, prefix, index, waitTime());
+    return toValueGroup(execute(KV_RECURSE, url), prefix, KV_RECURSE);
+  }
+  
+  public CompletableFuture<Optional<ValueGroup>> keyValuesAsync(String prefix, String index) {
+    String url = String.format(KEY_VALUE_RECURSE_WAIT_URL_ENDPOINT, host, port, prefix, index, waitTime());
+    return executeAsync(KV_RECURSE, url, response -> toValueGroup(response, prefix, KV_RECURSE));
+  }
+  
+  // Consul answers 404, along with the index, when there is no key under the prefix
+  private Optional<ValueGroup> toValueGroup(Response response, String prefix, String endpoint)
+      throws IOException {
+    Optional<String> responseIndex = Optional.ofNullable(response.header(INDEX_HEADER_NAME));
+    if (response.code() == HTTP_NOT_FOUND) {
+      response.body().close();
+      return Optional.of(new ValueGroup(Collections.emptyList(), responseIndex));
+    }
+    if (response.isSuccessful()) {
+      List<Value> values = parseValues(response, endpoint);
+      return Optional.of(new ValueGroup(values == null ? Collections.emptyList() : values, responseIndex));
+    }
+    Logger.warn(String.format("Failed to get prefix: %s, status-code: %s, message: %s",
+        prefix, response.code(), response.body().string()));
+    return Optional.empty();
+  }
+  
   private Optional<Value> value(String url, String key) throws IOException {
-    Request request = new Request.Builder()
-      .url(url)
-      .build();
+    return toValue(execute(KV, url), key);
+  }
   
-    Response response = okClient.newCall(request).execute();
+  private Optional<Value> toValue(Response response, String key) throws IOException {
     if (response.isSuccessful()) {
-      List<Value> value = toValue(response);
-      if (!value.isEmpty()) {
+      List<Value> value = parseValues(response, KV);
+      if (value != null && !value.isEmpty()) {
         return Optional.ofNullable(value.get(0));
       }
     } else {
@@ -150,21 +409,60 @@ public class ConsulClient {
     return Optional.empty();
   }
   
-  private List<Value> toValue(Response response) throws IOException {
-    String message = response.body().string();
-    return gson.fromJson(message, VALUE_LIST_TYPE);
+  private List<Value> parseValues(Response response, String endpoint) throws IOException {
+    return fromJson(response, VALUE_LIST_TYPE, endpoint);
+  }
+  
+  // The body is parsed straight from the stream without buffering it as a String first, its
+  // bytes are counted as they are read
+  private <T> T fromJson(Response response, Type type, String endpoint) throws IOException {
+    long start = System.nanoTime();
+    try (ResponseBody body = response.body()) {
+      CountingSource source = new CountingSource(body.source());
+      try {
+        return gson.fromJson(new InputStreamReader(Okio.buffer(source).inputStream(), charset(body)), type);
+      } finally {
+        metrics.parsed(endpoint, System.nanoTime() - start, source.bytes);
+      }
+    }
+  }
+  
+  private static Charset charset(ResponseBody body) {
+    MediaType contentType = body.contentType();
+    return contentType == null ? StandardCharsets.UTF_8 : contentType.charset(StandardCharsets.UTF_8);
+  }
+  
+  private static final class CountingSource extends ForwardingSource {
+    
+    private long bytes;
+    
+    CountingSource(Source source) {
+      super(source);
+    }
+    
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+      long read = super.read(sink, byteCount);
+      if (read > 0) {
+        bytes += read;
+      }
+      return read;
+    }
   }
   
   public List<String> datacenters() throws IOException {
     String url = String.format(DATACENTER_URL_ENDPOINT, host, port);
-    Request request = new Request.Builder()
-      .url(url)
-      .build();
+    return toDatacenters(execute(CATALOG_DATACENTERS, url));
+  }
+  
+  public CompletableFuture<List<String>> datacentersAsync() {
+    String url = String.format(DATACENTER_URL_ENDPOINT, host, port);
+    return executeAsync(CATALOG_DATACENTERS, url, this::toDatacenters);
+  }
   
-    Response response = okClient.newCall(request).execute();
+  private List<String> toDatacenters(Response response) throws IOException {
     if (response.isSuccessful()) {
-      String message = response.body().string();
-      return gson.fromJson(message, DC_LIST_TYPE);
+      return fromJson(response, DC_LIST_TYPE, CATALOG_DATACENTERS);
     } else {
       Logger.warn(String.format("Failed to get dc list status-code: %s, message: %s",
           response.code(), response.body().string()));
@@ -172,4 +470,76 @@ public class ConsulClient {
     }
   }
   
+  private Response execute(String endpoint, String url) throws IOException {
+    Request request = new Request.Builder()
+      .url(url)
+      .build();
+    
+    long start = System.nanoTime();
+    try {
+      Response response = okClient.newCall(request).execute();
+      metrics.httpCall(endpoint, System.nanoTime() - start, response.code());
+      return response;
+    } catch (IOException e) {
+      metrics.httpCall(endpoint, System.nanoTime() - start, -1);
+      throw e;
+    }
+  }
+  
+  // The response is handled on the OkHttp dispatcher thread that received it
+  private <T> CompletableFuture<T> executeAsync(String endpoint, String url, ResponseHandler<T> handler) {
+    Request request = new Request.Builder()
+      .url(url)
+      .build();
+    
+    Call call = okClient.newCall(request);
+    CallFuture<T> future = new CallFuture<>(call);
+    long start = System.nanoTime();
+    call.enqueue(new Callback() {
+      
+      @Override
+      public void onFailure(Call call, IOException e) {
+        metrics.httpCall(endpoint, System.nanoTime() - start, -1);
+        future.completeExceptionally(e);
+      }
+      
+      @Override
+      public void onResponse(Call call, Response response) {
+        metrics.httpCall(endpoint, System.nanoTime() - start, response.code());
+        try {
+          future.complete(handler.handle(response));
+        } catch (Throwable t) {
+          future.completeExceptionally(t);
+        }
+      }
+    });
+    return future;
+  }
+  
+  @FunctionalInterface
+  private interface ResponseHandler<T> {
+    T handle(Response response) throws IOException;
+  }
+  
+  /**
+   * Cancels the HTTP call when it is cancelled, which frees its connection and the dispatcher
+   * thread waiting on it. Futures derived from it with thenApply() and the like do not cancel it.
+   */
+  private static class CallFuture<T> extends CompletableFuture<T> {
+    
+    private final Call call;
+    
+    CallFuture(Call call) {
+      this.call = call;
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        call.cancel();
+      }
+      return cancelled;
+    }
+  }
 }
@@ -22,8 +22,8 @@ import okhttp3.OkHttpClient;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.totango.discoveryagent.gson.ServiceDeserializer;
-import com.totango.discoveryagent.gson.ValueDeserializer;
+import com.totango.discoveryagent.gson.ServiceTypeAdapter;
+import com.totango.discoveryagent.gson.ValueTypeAdapter;
 import com.totango.discoveryagent.model.Service;
 import com.totango.discoveryagent.model.Value;
 
@@ -45,10 +45,12 @@ public class ConsulClientFactory {
   
   private int waitTimeInSec = DEFAULT_WAIT_TIME_IN_SEC;
   
+  private double waitJitter = 0;
+  
   private Gson createGson() {
     GsonBuilder gsonBuilder = new GsonBuilder();
-    gsonBuilder.registerTypeAdapter(Service.class, new ServiceDeserializer());
-    gsonBuilder.registerTypeAdapter(Value.class, new ValueDeserializer());
+    gsonBuilder.registerTypeAdapter(Service.class, new ServiceTypeAdapter());
+    gsonBuilder.registerTypeAdapter(Value.class, new ValueTypeAdapter());
     return gsonBuilder.create();
   }
   
@@ -56,14 +58,18 @@ public class ConsulClientFactory {
     if (waitTimeInSec > MAX_WAIT_TIME_IN_SEC || waitTimeInSec < 1) {
       throw new IllegalArgumentException("Wait timeout should be between 1 to 600 (1s to 10m)");
     }
+    if (waitJitter < 0 || waitJitter > 1) {
+      throw new IllegalArgumentException("Wait jitter should be between 0 and 1");
+    }
     
     Gson gson = createGson();
+    // The ConsulClient raises the OkHttp dispatcher limit of calls per host for its watches
     OkHttpClient.Builder builder = new OkHttpClient.Builder();
     builder.readTimeout(waitTimeInSec + READ_TIMEOUT_DELTA, TimeUnit.SECONDS);
     builder.connectTimeout(waitTimeInSec + READ_TIMEOUT_DELTA, TimeUnit.SECONDS);
     OkHttpClient okHttpClient = builder.build();
     
-    return new ConsulClient(okHttpClient, gson, host, port, waitTimeInSec);
+    return new ConsulClient(okHttpClient, gson, host, port, waitTimeInSec, waitJitter);
   }
   
   public ConsulClientFactory host(String host) {
@@ -76,6 +82,15 @@ public class ConsulClientFactory {
     return this;
   }
   
+  /**
+   * @param waitJitter the fraction, between 0 and 1, by which the wait time of blocking queries
+   * is randomly shortened
+   */
+  public ConsulClientFactory waitJitter(double waitJitter) {
+    this.waitJitter = waitJitter;
+    return this;
+  }
+  
   public ConsulClientFactory waitTimeInSec(int waitTimeInSec) {
     this.waitTimeInSec = waitTimeInSec;
     return this;
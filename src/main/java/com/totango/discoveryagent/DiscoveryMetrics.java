@@ -0,0 +1,106 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+/**
+ * Receives the numbers of a {@link ConsulClient}, a {@link DiscoveryService} and its load
+ * balancers, to be reported to a metrics library like Micrometer or Dropwizard. Every method
+ * does nothing by default so an implementation only overrides what it reports.
+ * 
+ * The methods are called on the threads doing the work, including the threads picking an
+ * endpoint, so they should return quickly. Their arguments are never built for the call, the
+ * names passed are the same instances every time.
+ * 
+ * A watch is named by its kind, {@link #SERVICE}, {@link #KEY} or {@link #PREFIX}, and by the
+ * service name, key or prefix it watches.
+ */
+public interface DiscoveryMetrics {
+
+  DiscoveryMetrics NONE = new DiscoveryMetrics() {};
+  
+  String SERVICE = "service";
+  
+  String KEY = "key";
+  
+  String PREFIX = "prefix";
+  
+  /**
+   * @param endpoint the Consul HTTP API called, like "health/service" or "kv"
+   * @param nanos until the response headers were received, a blocking query includes its wait
+   * @param status the HTTP status of the response, or -1 when the call failed
+   */
+  default void httpCall(String endpoint, long nanos, int status) {
+  }
+  
+  /**
+   * @param nanos spent reading and parsing the body
+   * @param bytes of the body
+   */
+  default void parsed(String endpoint, long nanos, long bytes) {
+  }
+  
+  /**
+   * getServices() returned the services it knew without calling Consul.
+   */
+  default void cacheHit(String serviceName) {
+  }
+  
+  default void cacheMiss(String serviceName) {
+  }
+  
+  /**
+   * The services of a service nobody subscribed to were evicted from the cache.
+   */
+  default void evicted(String serviceName) {
+  }
+  
+  /**
+   * A blocking query of a watch returned.
+   * 
+   * @param changed false when nothing the subscribers see changed, like when only the index moved
+   */
+  default void wakeup(String kind, String name, boolean changed) {
+  }
+  
+  /**
+   * A failed query of a watch is retried.
+   */
+  default void retried(String kind, String name) {
+  }
+  
+  /**
+   * A watch started over because Consul returned an index that was not positive or went backwards.
+   */
+  default void indexReset(String kind, String name) {
+  }
+  
+  default void subscribed(String kind, String name) {
+  }
+  
+  default void unsubscribed(String kind, String name) {
+  }
+  
+  /**
+   * @param endpoint the node and service ID of the picked instance, prefixed by its datacenter
+   * when known
+   */
+  default void picked(String serviceName, String endpoint) {
+  }
+  
+  default void noServiceAvailable(String serviceName) {
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.List;
+import java.util.Optional;
+
+import com.totango.discoveryagent.model.Service;
+
+/**
+ * The outcome of discovering one service out of many, either its services or the failure.
+ */
+public class DiscoveryResult {
+
+  private final List<Service> services;
+  
+  private final Throwable failure;
+  
+  private DiscoveryResult(List<Service> services, Throwable failure) {
+    this.services = services;
+    this.failure = failure;
+  }
+  
+  static DiscoveryResult success(List<Service> services) {
+    return new DiscoveryResult(services, null);
+  }
+  
+  static DiscoveryResult failure(Throwable failure) {
+    return new DiscoveryResult(null, failure);
+  }
+  
+  public boolean isSuccess() {
+    return failure == null;
+  }
+  
+  public Optional<List<Service>> getServices() {
+    return Optional.ofNullable(services);
+  }
+  
+  public Optional<Throwable> getFailure() {
+    return Optional.ofNullable(failure);
+  }
+}
@@ -17,12 +17,29 @@
 package com.totango.discoveryagent;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,14 +47,21 @@ import org.slf4j.LoggerFactory;
 import rx.Observable;
 import rx.Observable.OnSubscribe;
 import rx.Observer;
+import rx.Scheduler;
 import rx.Subscriber;
 import rx.Subscription;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
 
 import com.totango.discoveryagent.model.Service;
+import com.totango.discoveryagent.model.ServiceChanges;
 import com.totango.discoveryagent.model.ServiceGroup;
+import com.totango.discoveryagent.model.Value;
+import com.totango.discoveryagent.model.ValueChanges;
+import com.totango.discoveryagent.model.ValueGroup;
 
 import static com.totango.discoveryagent.ServiceRequest.request;
 
@@ -45,11 +69,80 @@ public class DiscoveryService {
 
   private static final Logger Logger =  LoggerFactory.getLogger(DiscoveryService.class);
   
+  // Watches wait for Consul on the OkHttp dispatcher, this pool only handles their responses
+  private static final int DEFAULT_WATCH_THREADS = 8;
+  
+  private static final int LOOKUP_THREADS = 16;
+  
+  // Failed revalidations of snapshot groups are retried with a doubling delay between these
+  private static final long BASE_REVALIDATE_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+  
+  private static final long MAX_REVALIDATE_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+  
   private final ConsulClient consulClient;
 
-  private final Map<String, ServiceGroup> serviceGroupsMap = new ConcurrentHashMap<>();
+  private final Map<ServiceRequest, ServiceGroup> serviceGroupsMap = new ConcurrentHashMap<>();
+
+  private final Map<ServiceRequest, Observable<List<Service>>> observableMap = new ConcurrentHashMap<>();
+
+  private final Map<String, Value> valuesMap = new ConcurrentHashMap<>();
+  
+  private final Map<String, ValueGroup> keyGroupsMap = new ConcurrentHashMap<>();
+  
+  private final Map<String, Observable<Optional<Value>>> keyObservableMap = new ConcurrentHashMap<>();
+  
+  private final Map<String, KeyValueTree> prefixTreesMap = new ConcurrentHashMap<>();
+  
+  private final Map<String, Observable<KeyValueTree>> prefixObservableMap = new ConcurrentHashMap<>();
+  
+  // System.nanoTime() at which Consul last returned the group of a key, or at which it was
+  // loaded from the snapshot file
+  private final Map<ServiceRequest, Long> refreshedAt = new ConcurrentHashMap<>();
+  
+  // Subscribers of every key, whose group is kept up to date by their watch. They are counted
+  // from the time they get the observable, and only under the lock of its observableMap entry,
+  // so a key cannot be evicted between the two
+  private final Map<ServiceRequest, Integer> subscriberCounts = new ConcurrentHashMap<>();
+  
+  // Keys with a background refresh scheduled, so there is one at a time per key
+  private final Set<ServiceRequest> refreshingKeys = ConcurrentHashMap.newKeySet();
+  
+  private final Map<String, CachePolicy> cachePolicies = new ConcurrentHashMap<>();
+  
+  private volatile CachePolicy defaultCachePolicy = CachePolicy.NONE;
+  
+  // System.nanoTime() of the last lookup or subscription of a key, only kept once the cache is bounded
+  private final Map<ServiceRequest, AtomicLong> lastAccess = new ConcurrentHashMap<>();
+  
+  private volatile int maxCachedServices = Integer.MAX_VALUE;
+  
+  private volatile long maxIdleNanos = Long.MAX_VALUE;
+  
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+  
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  
+  // Concurrent lookups of a service or key that is not known yet share a single call to Consul
+  private final SingleFlight<ServiceRequest, Optional<ServiceGroup>> serviceFetches = new SingleFlight<>();
+  
+  private final SingleFlight<String, Optional<Value>> valueFetches = new SingleFlight<>();
+  
+  // Service groups loaded from the snapshot file that were not confirmed by Consul yet
+  private final Set<ServiceRequest> staleKeys = ConcurrentHashMap.newKeySet();
+  
+  private volatile SnapshotFile snapshotFile;
+  
+  private volatile WatchLimits watchLimits = WatchLimits.NONE;
+  
+  private final AtomicLong indexResets = new AtomicLong();
+  
+  private volatile DiscoveryMetrics metrics = DiscoveryMetrics.NONE;
+  
+  // Lookups of many services at once make blocking calls, they get their own threads so they do
+  // not hold the watch pool, it is only created when first needed
+  private volatile ExecutorService lookupExecutor;
 
-  private final Map<String, Observable<List<Service>>> observableMap = new ConcurrentHashMap<>();
+  private final Scheduler watchScheduler;
 
   private int retry;
 
@@ -59,26 +152,338 @@ public class DiscoveryService {
   
   public DiscoveryService(ConsulClient consulClient, int retry, Func1<Integer, Integer> delayFunc,
       TimeUnit delayTimeUnit) {
+    this(consulClient, retry, delayFunc, delayTimeUnit, newExecutor("discovery-watch-", DEFAULT_WATCH_THREADS));
+  }
+  
+  public DiscoveryService(ConsulClient consulClient, int retry, Func1<Integer, Integer> delayFunc,
+      TimeUnit delayTimeUnit, ExecutorService watchExecutor) {
     this.consulClient = consulClient;
     this.retry = retry;
     this.delayFunc = delayFunc;
     this.delayTimeUnit = delayTimeUnit;
+    this.watchScheduler = Schedulers.from(watchExecutor);
+  }
+  
+  /**
+   * Loads the service groups and key values saved in the given file by a previous run and keeps
+   * saving them there. Loaded service groups are served right away, marked as stale, and are
+   * revalidated with Consul in the background until that succeeds. Until then they are past
+   * their TTL, and their max staleness counts from the time they were loaded. Should be called
+   * before the service is used.
+   */
+  public void enableSnapshot(Path file) {
+    SnapshotFile snapshot = new SnapshotFile(file);
+    Map<ServiceRequest, ServiceGroup> loadedGroups = new HashMap<>();
+    Map<String, Value> loadedValues = new HashMap<>();
+    snapshot.load(loadedGroups, loadedValues);
+    
+    loadedValues.forEach(valuesMap::putIfAbsent);
+    long loadedAt = System.nanoTime();
+    loadedGroups.forEach((key, serviceGroup) -> {
+      if (serviceGroupsMap.putIfAbsent(key, serviceGroup) == null) {
+        refreshedAt.putIfAbsent(key, loadedAt);
+        staleKeys.add(key);
+        revalidateLater(key);
+      }
+    });
+    this.snapshotFile = snapshot;
+  }
+  
+  /**
+   * Limits how often Consul is called, see {@link WatchLimits}. One-off lookups like
+   * getServices() take a token from the bucket as well.
+   */
+  public void enableWatchLimits(WatchLimits watchLimits) {
+    this.watchLimits = watchLimits;
+  }
+  
+  /**
+   * Sets how long getServices() trusts the services of a service nobody subscribed to, see
+   * {@link CachePolicy}. Without a policy they are trusted until a subscription updates them.
+   */
+  public void enableCachePolicy(CachePolicy cachePolicy) {
+    this.defaultCachePolicy = cachePolicy;
+  }
+  
+  /**
+   * Same as {@link #enableCachePolicy(CachePolicy)} for a single service, it overrides the
+   * policy set for all the services.
+   */
+  public void enableCachePolicy(String serviceName, CachePolicy cachePolicy) {
+    cachePolicies.put(serviceName, cachePolicy);
+  }
+  
+  /**
+   * Bounds the services kept by getServices() and subscribe(). Once there are more than the max
+   * services without a subscriber, the ones least recently looked up are evicted, and services
+   * that were not looked up for the max idle time are evicted as well. Services with a
+   * subscriber are never evicted and do not count toward the max, their watch stops when the
+   * last subscriber unsubscribes and they can be evicted from then on.
+   * Eviction runs in the background as services are looked up.
+   */
+  public void enableCacheLimits(int maxServices, long maxIdleTime, TimeUnit unit) {
+    if (maxServices < 1 || maxIdleTime <= 0) {
+      throw new IllegalArgumentException("Max services and max idle time should be positive");
+    }
+    this.maxIdleNanos = unit.toNanos(maxIdleTime);
+    this.maxCachedServices = maxServices;
+  }
+  
+  /**
+   * Reports the wakeups, retries and subscribers of the watches, along with the calls made by
+   * the ConsulClient. Load balancers are given their metrics on their own.
+   */
+  public void enableMetrics(DiscoveryMetrics metrics) {
+    this.metrics = metrics;
+    consulClient.enableMetrics(metrics);
+  }
+  
+  /**
+   * @return how many times a watch started over because Consul returned an index that was
+   * not positive or that went backwards, like after a restart of the Consul servers
+   */
+  public long getIndexResets() {
+    return indexResets.get();
+  }
+  
+  /**
+   * @return true while the services returned for the request come from the snapshot file and
+   * were not confirmed by Consul yet
+   */
+  public boolean isStale(ServiceRequest serviceRequest) {
+    return staleKeys.contains(watchKey(serviceRequest));
+  }
+  
+  public boolean isStale(String serviceName) {
+    return isStale(request().forService(serviceName).build());
+  }
+  
+  private void revalidateLater(ServiceRequest key) {
+    if (refreshingKeys.add(key)) {
+      revalidateLater(key, 0);
+    }
+  }
+  
+  // A group from the snapshot file is revalidated until Consul confirms or replaces it, or until
+  // it is evicted, other groups are revalidated again by the next lookup that finds them expired.
+  // Like the watches, the call is asynchronous and waits for its token with a timer, so it never
+  // blocks a watch pool thread
+  private void revalidateLater(ServiceRequest key, int failures) {
+    long backoff = failures == 0 ? 0 : watchLimits.withJitter(
+        Math.min(BASE_REVALIDATE_BACKOFF_NANOS << Math.min(failures - 1, 30), MAX_REVALIDATE_BACKOFF_NANOS));
+    Observable.timer(backoff, TimeUnit.NANOSECONDS)
+      .flatMap(done -> call(() -> consulClient.discoverServiceAsync(key))
+          .delaySubscription(watchLimits.reserve(), TimeUnit.NANOSECONDS))
+      .map(response -> refreshed(key, response))
+      .subscribe(refreshed -> {
+        if (!refreshed.isPresent()) {
+          Logger.warn("Consul did not return the \"{}\" service, keeping the stale one", key.serviceName());
+        }
+        revalidated(key, refreshed.isPresent(), failures);
+      }, t -> {
+        Logger.warn("Failed to revalidate \"{}\" service, keeping the stale one. reason: {}",
+            key.serviceName(), t.toString());
+        revalidated(key, false, failures);
+      });
+  }
+  
+  private void revalidated(ServiceRequest key, boolean succeeded, int failures) {
+    if (!succeeded && staleKeys.contains(key)) {
+      revalidateLater(key, failures + 1);
+    } else {
+      refreshingKeys.remove(key);
+    }
+  }
+  
+  // The current group is fetched with a query that does not wait for a change
+  private Optional<ServiceGroup> refresh(ServiceRequest key) throws IOException {
+    awaitPermit();
+    return refreshed(key, consulClient.discoverService(key));
+  }
+  
+  // An unchanged X-Consul-Index confirms the stored group as is
+  private Optional<ServiceGroup> refreshed(ServiceRequest key, Optional<ServiceGroup> serviceGroupOpt) {
+    ServiceGroup stored = serviceGroupsMap.get(key);
+    serviceGroupOpt.ifPresent(sGroup -> {
+      refreshedAt.put(key, System.nanoTime());
+      if (stored != null && stored.getIndex().isPresent() && stored.getIndex().equals(sGroup.getIndex())) {
+        staleKeys.remove(key);
+      } else if (stored == null ? serviceGroupsMap.putIfAbsent(key, sGroup) == null
+          : serviceGroupsMap.replace(key, stored, sGroup)) {
+        serviceGroupChanged(key);
+      }
+    });
+    return serviceGroupOpt.map(sGroup -> serviceGroupsMap.getOrDefault(key, sGroup));
+  }
+  
+  private void serviceGroupChanged(ServiceRequest key) {
+    staleKeys.remove(key);
+    snapshotChanged();
+  }
+  
+  private void snapshotChanged() {
+    SnapshotFile snapshot = snapshotFile;
+    if (snapshot != null) {
+      snapshot.writeLater(serviceGroupsMap, valuesMap);
+    }
   }
 
   public List<Service> getServices(String serviceName) throws IOException {
-    ServiceGroup serviceGroup = serviceGroupsMap.get(serviceName);
+    return getServices(request().forService(serviceName).build());
+  }
+  
+  /**
+   * @return the services of all the given datacenters, each tagged with its datacenter
+   */
+  public List<Service> getServices(String serviceName, List<String> datacenters) throws IOException {
+    List<Service> services = new ArrayList<>();
+    for (String datacenter : datacenters) {
+      services.addAll(getServices(request().forService(serviceName).inDatacenter(datacenter).build()));
+    }
+    return services;
+  }
+  
+  public List<Service> getServices(ServiceRequest serviceRequest) throws IOException {
+    ServiceRequest key = watchKey(serviceRequest);
+    accessed(key);
+    ServiceGroup serviceGroup = serviceGroupsMap.get(key);
     if (serviceGroup != null) {
-      return serviceGroup.getServices();
+      metrics.cacheHit(key.serviceName());
+      return cachedServices(key, serviceGroup);
     }
     
-    ServiceRequest serviceRequest = request().forService(serviceName).build();
-    return consulClient.discoverService(serviceRequest)
-      .map(sGroup -> {
-        serviceGroupsMap.put(serviceName, sGroup);
-        return sGroup.getServices();
-      })
+    metrics.cacheMiss(key.serviceName());
+    return serviceFetches.run(key, () -> fetchServiceGroup(key))
+      .map(ServiceGroup::getServices)
       .orElse(Collections.emptyList());
   }
+  
+  private List<Service> cachedServices(ServiceRequest key, ServiceGroup serviceGroup) throws IOException {
+    Long refreshed = refreshedAt.get(key);
+    // Groups that are watched are always up to date
+    if (refreshed == null || subscriberCounts.containsKey(key)) {
+      return serviceGroup.getServices();
+    }
+    
+    // Groups loaded from the snapshot file are never fresh, whatever their age
+    CachePolicy cachePolicy = cachePolicies.getOrDefault(key.serviceName(), defaultCachePolicy);
+    long age = System.nanoTime() - refreshed;
+    if (!staleKeys.contains(key) && cachePolicy.isFresh(age)) {
+      return serviceGroup.getServices();
+    }
+    if (cachePolicy.canRevalidateInBackground(age)) {
+      revalidateLater(key);
+      return serviceGroup.getServices();
+    }
+    
+    try {
+      Optional<ServiceGroup> refreshedGroup = serviceFetches.run(key, () -> refresh(key));
+      if (!refreshedGroup.isPresent()) {
+        // Consul answered with an error status, which is a failed refresh like any other
+        throw new IOException("Consul did not return the \"" + key.serviceName() + "\" service");
+      }
+      return refreshedGroup.get().getServices();
+    } catch (IOException e) {
+      if (!cachePolicy.canServeStale(age)) {
+        throw e;
+      }
+      Logger.warn("Failed to refresh \"{}\" service, using the stale one. reason: {}",
+          key.serviceName(), e.toString());
+      return serviceGroup.getServices();
+    }
+  }
+  
+  private Optional<ServiceGroup> fetchServiceGroup(ServiceRequest key) throws IOException {
+    // Stored by a fetch that ended after this caller missed the map
+    ServiceGroup serviceGroup = serviceGroupsMap.get(key);
+    if (serviceGroup != null) {
+      return Optional.of(serviceGroup);
+    }
+    
+    awaitPermit();
+    Optional<ServiceGroup> serviceGroupOpt = consulClient.discoverService(key);
+    serviceGroupOpt.ifPresent(sGroup -> {
+      refreshedAt.put(key, System.nanoTime());
+      serviceGroupsMap.put(key, sGroup);
+      serviceGroupChanged(key);
+    });
+    return serviceGroupOpt;
+  }
+  
+  /**
+   * Discovers the services concurrently, a service that fails does not fail the others.
+   * 
+   * @return the result of every service by its name
+   */
+  public Map<String, DiscoveryResult> getServices(Collection<String> serviceNames) {
+    return getServicesAsync(serviceNames).join();
+  }
+  
+  public CompletableFuture<Map<String, DiscoveryResult>> getServicesAsync(Collection<String> serviceNames) {
+    ExecutorService executor = lookupExecutor();
+    Map<String, CompletableFuture<DiscoveryResult>> futures = new LinkedHashMap<>();
+    for (String serviceName : serviceNames) {
+      futures.computeIfAbsent(serviceName, name -> CompletableFuture.supplyAsync(() -> {
+        try {
+          return DiscoveryResult.success(getServices(name));
+        } catch (Throwable t) {
+          Logger.warn("Failed to discover \"{}\" service. reason: {}", name, t.toString());
+          return DiscoveryResult.failure(t);
+        }
+      }, executor));
+    }
+    
+    return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+        .thenApply(done -> {
+          Map<String, DiscoveryResult> results = new LinkedHashMap<>();
+          futures.forEach((serviceName, future) -> results.put(serviceName, future.join()));
+          return results;
+        });
+  }
+  
+  private ExecutorService lookupExecutor() {
+    ExecutorService executor = lookupExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = lookupExecutor;
+        if (executor == null) {
+          executor = newExecutor("discovery-lookup-", LOOKUP_THREADS);
+          lookupExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+  
+  /**
+   * Concurrent calls for the same key share a single call to Consul.
+   * 
+   * @return the value of the key, or the last known one when Consul cannot be reached
+   */
+  public Optional<Value> getValue(String key) throws IOException {
+    Optional<Value> value;
+    try {
+      value = valueFetches.run(key, () -> {
+        awaitPermit();
+        return consulClient.keyValue(key);
+      });
+    } catch (IOException e) {
+      Value lastValue = valuesMap.get(key);
+      if (lastValue == null) {
+        throw e;
+      }
+      Logger.warn("Failed to get \"{}\" key, using the last known value. reason: {}", key, e.toString());
+      return Optional.of(lastValue);
+    }
+    
+    // An unmodified key keeps its known Value so whatever was decoded from it is reused
+    Value lastValue = valuesMap.get(key);
+    if (lastValue != null && value.isPresent() && lastValue.equals(value.get())) {
+      return Optional.of(lastValue);
+    }
+    valueChanged(key, value);
+    return value;
+  }
 
   public Subscription subscribe(String serviceName, Action1<? super List<Service>> onNext) {
     Observable<List<Service>> serviceObservable = createOrGetObservable(serviceName);
@@ -101,65 +506,494 @@ public class DiscoveryService {
     return serviceObservable.subscribe(subscriber);
   }
   
+  public Subscription subscribe(ServiceRequest serviceRequest, Action1<? super List<Service>> onNext,
+      Action1<Throwable> onError) {
+    Observable<List<Service>> serviceObservable = createOrGetObservable(serviceRequest);
+    return serviceObservable.subscribe(onNext, onError);
+  }
+  
+  public Subscription subscribe(ServiceRequest serviceRequest, Subscriber<? super List<Service>> subscriber) {
+    Observable<List<Service>> serviceObservable = createOrGetObservable(serviceRequest);
+    return serviceObservable.subscribe(subscriber);
+  }
+  
+  /**
+   * Calls onNext with the instances that were added, removed or modified, by node and service
+   * ID, instead of the whole list. The first update holds all the instances as added.
+   */
+  public Subscription subscribeChanges(String serviceName, Action1<? super ServiceChanges> onNext,
+      Action1<Throwable> onError) {
+    return subscribeChanges(request().forService(serviceName).build(), onNext, onError);
+  }
+  
+  public Subscription subscribeChanges(ServiceRequest serviceRequest, Action1<? super ServiceChanges> onNext,
+      Action1<Throwable> onError) {
+    return createOrGetObservable(serviceRequest)
+        .map(new ServiceDiff())
+        .filter(changes -> !changes.isEmpty())
+        .subscribe(onNext, onError);
+  }
+  
+  /**
+   * Watches the service in every one of the given datacenters and calls onNext with the merged
+   * list whenever one of them changes. A datacenter whose watch fails is logged and its last
+   * known services are kept, so an unreachable remote datacenter does not stop the others.
+   */
+  public Subscription subscribe(String serviceName, List<String> datacenters,
+      Action1<? super List<Service>> onNext, Action1<Throwable> onError) {
+    List<Observable<List<Service>>> observables = new ArrayList<>(datacenters.size());
+    for (String datacenter : datacenters) {
+      ServiceRequest serviceRequest = request().forService(serviceName).inDatacenter(datacenter).build();
+      observables.add(createOrGetObservable(serviceRequest)
+          .onErrorResumeNext(throwable -> {
+            Logger.error(String.format("Stopped listening for \"%s\" service in \"%s\" datacenter",
+                serviceName, datacenter), throwable);
+            return Observable.empty();
+          })
+          .startWith(Collections.<Service>emptyList()));
+    }
+    
+    // Every source starts with an empty list so the merged list is emitted as soon as the first
+    // datacenter answers, the first combination is all empty and is skipped
+    Observable<List<Service>> merged = Observable.combineLatest(observables, lists -> {
+      List<Service> services = new ArrayList<>();
+      for (Object list : lists) {
+        @SuppressWarnings("unchecked")
+        List<Service> datacenterServices = (List<Service>) list;
+        services.addAll(datacenterServices);
+      }
+      return services;
+    });
+    return merged.skip(1).subscribe(onNext, onError);
+  }
+  
+  /**
+   * Watches a key and calls onNext with its value, or with none when it does not exist, first
+   * and then every time its ModifyIndex changes. All the subscribers of a key share one watch.
+   */
+  public Subscription subscribeKey(String key, Action1<? super Optional<Value>> onNext,
+      Action1<Throwable> onError) {
+    return createOrGetKeyObservable(key).subscribe(onNext, onError);
+  }
+  
+  public Subscription subscribeKey(String key, Subscriber<? super Optional<Value>> subscriber) {
+    return createOrGetKeyObservable(key).subscribe(subscriber);
+  }
+  
+  /**
+   * Watches all the keys under the prefix with a single blocking query. The first update holds
+   * every key as added, the following ones only the keys that were added, changed or removed.
+   */
+  public Subscription subscribePrefix(String prefix, Action1<? super ValueChanges> onNext,
+      Action1<Throwable> onError) {
+    return prefixObservableMap.computeIfAbsent(prefix, this::createPrefixObservable)
+        .map(new FirstTreeAsAdded())
+        .filter(changes -> !changes.isEmpty())
+        .subscribe(onNext, onError);
+  }
+  
+  public List<String> datacenters() throws IOException {
+    return consulClient.datacenters();
+  }
+  
   private Observable<List<Service>> createOrGetObservable(String serviceName) {
-    Observable<List<Service>> observable = observableMap.get(serviceName);
-    if (observable == null) {
-      observable = createServiceObservable(serviceName);
-      observableMap.put(serviceName, observable);
-      observable = observable.subscribeOn(Schedulers.newThread());
-    }
-    return observable;
-  }
-
-  private Observable<List<Service>> createServiceObservable(String serviceName) {
-    
-    //  Casting is needed because of a known bug in javac
-    Observable<List<Service>> observable = Observable.create((OnSubscribe<List<Service>>)(subscriber) -> {
-
-      try {  
-        
-        String serviceIndex = getServiceIndex(serviceName).orElse("0");
-        ServiceRequest serviceRequest = request()
-            .forService(serviceName)
-            .lastUpdateIndex(serviceIndex).build();
-        
-        Optional<ServiceGroup> serviceGroupOpt = consulClient.discoverService(serviceRequest);
-        
-        serviceGroupOpt.ifPresent(sGroup -> {
-          ServiceGroup lastServiceGroup = serviceGroupsMap.get(serviceName);
-          
-          if (lastServiceGroup == null || !lastServiceGroup.equals(sGroup)) {
-            serviceGroupsMap.put(serviceName, sGroup);
-            subscriber.onNext(sGroup.getServices());
-            subscriber.onCompleted();
-          }
-        });
+    return createOrGetObservable(request().forService(serviceName).build());
+  }
+  
+  // All subscribers of the same request, apart from its index, share a single watch, so there is
+  // only one in-flight blocking query per key no matter how many subscriptions exist
+  // The returned observable must be subscribed once, its subscriber is counted until it unsubscribes
+  private Observable<List<Service>> createOrGetObservable(ServiceRequest serviceRequest) {
+    ServiceRequest key = watchKey(serviceRequest);
+    accessed(key);
+    Observable<List<Service>> observable = observableMap.compute(key, (k, existing) -> {
+      subscriberCounts.merge(k, 1, Integer::sum);
+      return existing != null ? existing : createServiceObservable(k);
+    });
+    return observable.doOnUnsubscribe(() -> unsubscribed(key));
+  }
+  
+  private void unsubscribed(ServiceRequest key) {
+    observableMap.computeIfPresent(key, (k, observable) -> {
+      if (subscriberCounts.merge(k, -1, Integer::sum) == 0) {
+        subscriberCounts.remove(k);
+        // Idles from the time the last subscriber left
+        if (maxCachedServices != Integer.MAX_VALUE) {
+          touch(k);
+        }
+      }
+      return observable;
+    });
+  }
+  
+  private void accessed(ServiceRequest key) {
+    if (maxCachedServices == Integer.MAX_VALUE) {
+      return;
+    }
+    long now = touch(key);
+    if (overLimit() || now - lastSweep.get() > maxIdleNanos / 2) {
+      evictLater();
+    }
+  }
+  
+  // Subscribed services cannot be evicted, counting them would keep every lookup sweeping
+  private boolean overLimit() {
+    return lastAccess.size() - subscriberCounts.size() > maxCachedServices;
+  }
+  
+  private long touch(ServiceRequest key) {
+    AtomicLong last = lastAccess.get(key);
+    if (last == null) {
+      last = lastAccess.computeIfAbsent(key, k -> new AtomicLong());
+    }
+    long now = System.nanoTime();
+    last.set(now);
+    return now;
+  }
+  
+  private void evictLater() {
+    if (!sweeping.compareAndSet(false, true)) {
+      return;
+    }
+    Scheduler.Worker worker = watchScheduler.createWorker();
+    worker.schedule(() -> {
+      int evicted = 0;
+      try {
+        evicted = evict();
       } catch (Throwable t) {
-        subscriber.onError(t);
+        Logger.warn("Failed to evict services. reason: {}", t.toString());
+      } finally {
+        sweeping.set(false);
+        worker.unsubscribe();
+      }
+      // A sweep that evicted nothing would not do better right away, the next lookup retries
+      if (evicted > 0 && overLimit()) {
+        evictLater();
+      }
+    });
+  }
+  
+  // Evicts the idle services first and then the least recently used ones, down to 90% of the
+  // max so the next sweep is not needed right away
+  private int evict() {
+    long now = System.nanoTime();
+    lastSweep.set(now);
+    int maxServices = maxCachedServices;
+    long maxIdle = maxIdleNanos;
+    
+    Set<ServiceRequest> keys = new HashSet<>(serviceGroupsMap.keySet());
+    keys.addAll(observableMap.keySet());
+    keys.addAll(lastAccess.keySet());
+    
+    List<ServiceRequest> candidates = new ArrayList<>();
+    Map<ServiceRequest, Long> accessTimes = new HashMap<>();
+    int evicted = 0;
+    for (ServiceRequest key : keys) {
+      if (subscriberCounts.containsKey(key)) {
+        continue;
+      }
+      // Services loaded from the snapshot file or kept before the cache was bounded start idling now
+      long last = lastAccess.computeIfAbsent(key, k -> new AtomicLong(now)).get();
+      if (now - last >= maxIdle) {
+        evicted += evict(key) ? 1 : 0;
+      } else {
+        candidates.add(key);
+        accessTimes.put(key, last);
+      }
+    }
+    
+    int excess = candidates.size() - maxServices;
+    if (excess > 0) {
+      candidates.sort((key, other) -> Long.compare(accessTimes.get(key), accessTimes.get(other)));
+      int toEvict = Math.min(excess + maxServices / 10, candidates.size());
+      for (int i = 0; i < toEvict; i++) {
+        evicted += evict(candidates.get(i)) ? 1 : 0;
+      }
+    }
+    if (evicted > 0) {
+      snapshotChanged();
+    }
+    return evicted;
+  }
+  
+  // The observable is only removed while it has no subscriber, so no watch keeps running once
+  // its service was evicted and no subscriber is left with a removed observable
+  private boolean evict(ServiceRequest key) {
+    Observable<List<Service>> kept = observableMap.computeIfPresent(key,
+        (k, observable) -> subscriberCounts.containsKey(k) ? observable : null);
+    if (kept != null) {
+      return false;
+    }
+    lastAccess.remove(key);
+    serviceGroupsMap.remove(key);
+    refreshedAt.remove(key);
+    staleKeys.remove(key);
+    consulClient.forget(key);
+    metrics.evicted(key.serviceName());
+    return true;
+  }
+  
+  private ServiceRequest watchKey(ServiceRequest serviceRequest) {
+    return serviceRequest.toBuilder().lastUpdateIndex("0").build();
+  }
+
+  private Observable<List<Service>> createServiceObservable(ServiceRequest key) {
+    
+    String serviceName = key.serviceName();
+    WatchIndex watchIndex = watchIndex(DiscoveryMetrics.SERVICE, serviceName);
+    
+    Observable<List<Service>> observable = Observable.defer(() -> {
+      
+      // Changes are detected against the group the request was made with, it may have been
+      // replaced meanwhile by a revalidation of a stale group
+      ServiceGroup lastServiceGroup = serviceGroupsMap.get(key);
+      String serviceIndex = Optional.ofNullable(lastServiceGroup)
+          .flatMap(ServiceGroup::getIndex)
+          .orElse("0");
+      ServiceRequest serviceRequest = key.toBuilder().lastUpdateIndex(serviceIndex).build();
+      
+      return call(() -> consulClient.discoverServiceAsync(serviceRequest)).flatMap(response -> {
+        // An error answer fails the poll so that it is retried with backoff, not repeated right away
+        if (!response.isPresent()) {
+          return Observable.<List<Service>>error(new IOException(
+              "Consul did not return the \"" + serviceName + "\" service"));
+        }
+        ServiceGroup sGroup = new ServiceGroup(response.get().getServices(),
+            watchIndex.next(serviceIndex, response.get().getIndex()));
+        refreshedAt.put(key, System.nanoTime());
+        boolean changed = lastServiceGroup == null || !lastServiceGroup.getServices().equals(sGroup.getServices());
+        metrics.wakeup(DiscoveryMetrics.SERVICE, serviceName, changed);
+        if (changed) {
+          serviceGroupsMap.put(key, sGroup);
+          serviceGroupChanged(key);
+          return Observable.just(sGroup.getServices());
+        }
+        // Only the index moved, it is kept for the next query but it is not an update
+        if (!lastServiceGroup.equals(sGroup)) {
+          serviceGroupsMap.put(key, sGroup);
+        }
+        staleKeys.remove(key);
+        return Observable.<List<Service>>empty();
+      });
+    });
+    
+    Observable<List<Service>> watch = watch(DiscoveryMetrics.SERVICE, serviceName, watchIndex, observable);
+    
+    return share(DiscoveryMetrics.SERVICE, serviceName,
+        () -> Optional.ofNullable(serviceGroupsMap.get(key)).map(ServiceGroup::getServices), watch);
+  }
+  
+  /**
+   * One upstream watch is connected while there is at least one subscriber, late subscribers
+   * get the last update replayed and a new connection starts from the last known state.
+   * 
+   * @param last the last known state, emitted first when the watch connects
+   */
+  private <T> Observable<T> share(String kind, String name, Func0<Optional<T>> last, Observable<T> watch) {
+    return Observable.defer(() -> last.call()
+          .map(Observable::just)
+          .orElse(Observable.empty()))
+        .concatWith(watch)
+        .replay(1)
+        .refCount()
+        .doOnSubscribe(() -> metrics.subscribed(kind, name))
+        .doOnUnsubscribe(() -> metrics.unsubscribed(kind, name));
+  }
+  
+  private WatchIndex watchIndex(String kind, String name) {
+    return new WatchIndex(String.format("\"%s\" %s", name, kind), () -> {
+      indexResets.incrementAndGet();
+      metrics.indexReset(kind, name);
+    });
+  }
+  
+  private Observable<Optional<Value>> createOrGetKeyObservable(String key) {
+    return keyObservableMap.computeIfAbsent(key, this::createKeyObservable);
+  }
+  
+  private Observable<Optional<Value>> createKeyObservable(String key) {
+    
+    WatchIndex watchIndex = watchIndex(DiscoveryMetrics.KEY, key);
+    
+    Observable<Optional<Value>> observable = Observable.defer(() -> {
+      
+      ValueGroup lastValueGroup = keyGroupsMap.get(key);
+      String index = Optional.ofNullable(lastValueGroup)
+          .flatMap(ValueGroup::getIndex)
+          .orElse("0");
+      
+      return call(() -> consulClient.keyValueGroupAsync(key, index)).flatMap(response -> {
+        // A missing key is an empty group that keeps its index, this is an error answer
+        if (!response.isPresent()) {
+          return Observable.<Optional<Value>>error(new IOException(
+              "Consul did not return the \"" + key + "\" key"));
+        }
+        ValueGroup vGroup = new ValueGroup(response.get().getValues(), watchIndex.next(index, response.get().getIndex()));
+        keyGroupsMap.put(key, vGroup);
+        Optional<Value> value = firstValue(vGroup);
+        // A wakeup that did not modify the key, like a change of another key, is not an update
+        boolean changed = lastValueGroup == null || !sameModifyIndex(firstValue(lastValueGroup), value);
+        metrics.wakeup(DiscoveryMetrics.KEY, key, changed);
+        if (!changed) {
+          return Observable.<Optional<Value>>empty();
+        }
+        valueChanged(key, value);
+        return Observable.just(value);
+      });
+    });
+    
+    Observable<Optional<Value>> watch = watch(DiscoveryMetrics.KEY, key, watchIndex, observable);
+    
+    return share(DiscoveryMetrics.KEY, key, () -> Optional.ofNullable(keyGroupsMap.get(key)).map(DiscoveryService::firstValue), watch);
+  }
+  
+  private static Optional<Value> firstValue(ValueGroup valueGroup) {
+    return valueGroup.getValues().stream().findFirst();
+  }
+  
+  private static boolean sameModifyIndex(Optional<Value> value, Optional<Value> other) {
+    if (value.isPresent() && other.isPresent()) {
+      return value.get().getModifyIndex() == other.get().getModifyIndex();
+    }
+    return value.isPresent() == other.isPresent();
+  }
+  
+  private void valueChanged(String key, Optional<Value> value) {
+    Value lastValue = value.isPresent() ? valuesMap.put(key, value.get()) : valuesMap.remove(key);
+    if (!Objects.equals(lastValue, value.orElse(null))) {
+      snapshotChanged();
+    }
+  }
+  
+  private Observable<KeyValueTree> createPrefixObservable(String prefix) {
+    
+    WatchIndex watchIndex = watchIndex(DiscoveryMetrics.PREFIX, prefix);
+    
+    Observable<KeyValueTree> observable = Observable.defer(() -> {
+      
+      KeyValueTree lastTree = prefixTreesMap.getOrDefault(prefix, KeyValueTree.EMPTY);
+      
+      return call(() -> consulClient.keyValuesAsync(prefix, lastTree.index())).flatMap(response -> {
+        if (!response.isPresent()) {
+          return Observable.<KeyValueTree>error(new IOException(
+              "Consul did not return the \"" + prefix + "\" prefix"));
+        }
+        ValueGroup vGroup = new ValueGroup(response.get().getValues(),
+            watchIndex.next(lastTree.index(), response.get().getIndex()));
+        KeyValueTree tree = lastTree.next(vGroup);
+        prefixTreesMap.put(prefix, tree);
+        boolean changed = !tree.changes().isEmpty();
+        metrics.wakeup(DiscoveryMetrics.PREFIX, prefix, changed);
+        return changed ? Observable.just(tree) : Observable.<KeyValueTree>empty();
+      });
+    });
+    
+    Observable<KeyValueTree> watch = watch(DiscoveryMetrics.PREFIX, prefix, watchIndex, observable);
+    
+    return share(DiscoveryMetrics.PREFIX, prefix, () -> Optional.ofNullable(prefixTreesMap.get(prefix)), watch);
+  }
+  
+  /**
+   * A subscriber gets the whole tree it sees first, the replayed one, as added and then only
+   * the changes of every following tree.
+   */
+  private static class FirstTreeAsAdded implements Func1<KeyValueTree, ValueChanges> {
+    
+    private boolean first = true;
+    
+    @Override
+    public ValueChanges call(KeyValueTree tree) {
+      if (first) {
+        first = false;
+        return tree.asAdded();
       }
+      return tree.changes();
+    }
+  }
+  
+  /**
+   * Makes the HTTP call of a poll when subscribed and cancels it when unsubscribed. The call
+   * waits on the OkHttp dispatcher, not on a watch pool thread, and its response is handled on
+   * the watch pool so subscriber code never runs on a dispatcher thread.
+   */
+  private <T> Observable<T> call(Func0<CompletableFuture<T>> call) {
+    return Observable.create((OnSubscribe<T>) subscriber -> {
+      CompletableFuture<T> future = call.call();
+      subscriber.add(Subscriptions.create(() -> future.cancel(true)));
+      future.whenComplete((result, t) -> {
+        if (t != null) {
+          subscriber.onError(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+        } else {
+          subscriber.onNext(result);
+          subscriber.onCompleted();
+        }
+      });
+    }).observeOn(watchScheduler);
+  }
+  
+  /**
+   * Repeats the given poll for as long as it is subscribed, retrying failed polls with the
+   * configured delays.
+   * 
+   * @param kind and name of what is watched, for the logs and the metrics
+   * @param watchIndex of the poll, its reset backoff delays the next poll
+   */
+  private <T> Observable<T> watch(String kind, String name, WatchIndex watchIndex, Observable<T> poll) {
+    String description = String.format("\"%s\" %s", name, kind);
+    AtomicLong lastStart = new AtomicLong();
+    
+    // The poll only enqueues its HTTP call, so re-subscribing from the timers does not block them
+    Observable<T> timedPoll = Observable.defer(() -> {
+      lastStart.set(System.nanoTime());
+      return poll;
+    });
+    
+    Observable<T> limitedPoll = Observable.defer(() -> {
+      long wait = watchLimits.reserve();
+      return wait == 0 ? timedPoll : timedPoll.delaySubscription(wait, TimeUnit.NANOSECONDS);
     });
     
-    return observable.retryWhen(attempts -> {
+    return limitedPoll.retryWhen(attempts -> {
           return attempts.zipWith(Observable.range(1, retry), (throwable, i) -> {
-            Logger.warn("Failed to listen for \"{}\" service updates. reason: {}",
-                serviceName, throwable.toString());
+            Logger.warn("Failed to listen for {} updates. reason: {}", description, throwable.toString());
+            metrics.retried(kind, name);
             return i;
           })
           .map(delayFunc)
           .flatMap(delay -> {
-            Logger.warn("Delay next call to discover \"{}\" service by {} millisecond(s)", serviceName, delay);
-            return Observable.timer(delay.intValue(), delayTimeUnit);
+            Logger.warn("Delay next call to watch {} by {} millisecond(s)", description, delay);
+            long delayNanos = watchLimits.withJitter(delayTimeUnit.toNanos(delay.intValue()));
+            return Observable.timer(delayNanos, TimeUnit.NANOSECONDS);
           });
-    }).repeatWhen(completed -> completed.delay(10, TimeUnit.MILLISECONDS));
+    }).repeatWhen(completed -> completed.flatMap(done -> {
+      long delay = Math.max(watchLimits.nextWakeupDelay(lastStart.get()),
+          watchLimits.withJitter(watchIndex.backoffNanos()));
+      return Observable.timer(delay, TimeUnit.NANOSECONDS);
+    }));
   }
-
-  private Optional<String> getServiceIndex(String name) {
-    ServiceGroup serviceGroup = serviceGroupsMap.get(name);
-    if (serviceGroup == null) {
-      return Optional.empty();
-    } else {
-      return serviceGroup.getIndex();
+  
+  private void awaitPermit() throws InterruptedIOException {
+    long wait = watchLimits.reserve();
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting to call Consul");
+      }
     }
   }
   
+  private static ExecutorService newExecutor(String threadPrefix, int maxThreads) {
+    AtomicInteger threadCounter = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, threadPrefix + threadCounter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+  
 }
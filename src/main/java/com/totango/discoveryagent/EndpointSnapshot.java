@@ -0,0 +1,167 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.totango.discoveryagent.model.Service;
+
+/**
+ * An immutable, indexed view of a service list. It is built once per update so picking an
+ * endpoint reads flat arrays and never allocates.
+ */
+final class EndpointSnapshot {
+
+  private static final Logger Logger =  LoggerFactory.getLogger(EndpointSnapshot.class);
+  
+  static final EndpointSnapshot EMPTY = new EndpointSnapshot(Collections.emptyList(), null);
+  
+  private final Service[] services;
+  
+  private final String[] addresses;
+  
+  // Boxed once here since Function2 takes an Integer port
+  private final Integer[] ports;
+  
+  private final InetSocketAddress[] socketAddresses;
+  
+  private final String[] keys;
+  
+  private final EndpointStats[] stats;
+  
+  private final int preferred;
+  
+  /**
+   * @param previous the snapshot being replaced, endpoints that are still listed keep their stats
+   */
+  EndpointSnapshot(List<Service> serviceList, EndpointSnapshot previous) {
+    this(serviceList, serviceList.size(), previous);
+  }
+  
+  /**
+   * @param preferred the number of endpoints, at the head of the list, that should be used first
+   * @param previous the snapshot being replaced, endpoints that are still listed keep their stats
+   */
+  EndpointSnapshot(List<Service> serviceList, int preferred, EndpointSnapshot previous) {
+    List<Service> reachable = new ArrayList<>(serviceList.size());
+    int reachablePreferred = 0;
+    for (int i = 0; i < serviceList.size(); i++) {
+      Service service = serviceList.get(i);
+      String address = address(service);
+      if (address == null || address.isEmpty()) {
+        Logger.warn("Skipping \"{}\" service on node \"{}\", it has no address",
+            service.getServiceId(), service.getNode());
+        continue;
+      }
+      reachable.add(service);
+      reachablePreferred += i < preferred ? 1 : 0;
+    }
+    
+    int size = reachable.size();
+    this.preferred = reachablePreferred;
+    this.services = reachable.toArray(new Service[size]);
+    this.addresses = new String[size];
+    this.ports = new Integer[size];
+    this.socketAddresses = new InetSocketAddress[size];
+    this.keys = new String[size];
+    this.stats = new EndpointStats[size];
+    
+    Map<String, EndpointStats> previousStats = previous == null ? Collections.emptyMap() : previous.statsByKey();
+    for (int i = 0; i < size; i++) {
+      Service service = services[i];
+      addresses[i] = address(service);
+      ports[i] = service.getServicePort();
+      socketAddresses[i] = socketAddress(addresses[i], ports[i]);
+      keys[i] = ServiceDiff.key(service);
+      stats[i] = previousStats.getOrDefault(keys[i], new EndpointStats());
+    }
+  }
+  
+  private Map<String, EndpointStats> statsByKey() {
+    Map<String, EndpointStats> statsByKey = new HashMap<>(keys.length * 2);
+    for (int i = 0; i < keys.length; i++) {
+      statsByKey.put(keys[i], stats[i]);
+    }
+    return statsByKey;
+  }
+  
+  // Consul returns an empty service address when the service was registered without one,
+  // in which case the service is reachable on the node address
+  private static String address(Service service) {
+    String serviceAddress = service.getServiceAddress();
+    if (serviceAddress == null || serviceAddress.isEmpty()) {
+      return service.getNodeAddress();
+    }
+    return serviceAddress;
+  }
+  
+  // An IP address is parsed without a lookup. A host name is left unresolved for the client to
+  // resolve when it connects, so a slow DNS server does not hold up the update and a changed
+  // record is not kept for as long as the snapshot
+  static InetSocketAddress socketAddress(String address, int port) {
+    boolean ipAddress = address.indexOf(':') >= 0
+        || address.chars().allMatch(c -> c == '.' || Character.isDigit(c));
+    return ipAddress ? new InetSocketAddress(address, port) : InetSocketAddress.createUnresolved(address, port);
+  }
+  
+  int size() {
+    return services.length;
+  }
+  
+  int preferred() {
+    return preferred;
+  }
+  
+  boolean isEmpty() {
+    return services.length == 0;
+  }
+  
+  Service service(int i) {
+    return services[i];
+  }
+  
+  String address(int i) {
+    return addresses[i];
+  }
+  
+  Integer port(int i) {
+    return ports[i];
+  }
+  
+  InetSocketAddress socketAddress(int i) {
+    return socketAddresses[i];
+  }
+  
+  /**
+   * @return the node and service ID of the endpoint, prefixed by its datacenter when known
+   */
+  String key(int i) {
+    return keys[i];
+  }
+  
+  EndpointStats stats(int i) {
+    return stats[i];
+  }
+}
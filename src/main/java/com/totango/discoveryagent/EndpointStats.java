@@ -0,0 +1,137 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per endpoint bookkeeping of a load balancer. It is carried over between endpoint snapshots
+ * for as long as the endpoint stays in the service list.
+ */
+final class EndpointStats {
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  
+  // Moving averages are kept as the raw bits of a double so they can be updated with CAS,
+  // NaN means nothing was recorded yet
+  private final AtomicLong latencyEwma = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+  
+  private final AtomicLong errorRateEwma = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+  
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  
+  private final AtomicInteger consecutiveSuccesses = new AtomicInteger();
+  
+  // Ejections since the endpoint last recovered, used for the ejection backoff
+  private final AtomicInteger ejections = new AtomicInteger();
+  
+  // System.nanoTime() until which the endpoint is ejected, 0 when it is not
+  private final AtomicLong ejectedUntil = new AtomicLong();
+  
+  void callStarted() {
+    inFlight.incrementAndGet();
+  }
+  
+  void callEnded() {
+    inFlight.decrementAndGet();
+  }
+  
+  int inFlight() {
+    return inFlight.get();
+  }
+  
+  /**
+   * @param weight of the new sample, between 0 and 1
+   */
+  void recordCall(long latencyNanos, boolean failed, double weight) {
+    updateEwma(latencyEwma, latencyNanos, weight);
+    updateEwma(errorRateEwma, failed ? 1 : 0, weight);
+  }
+  
+  private static void updateEwma(AtomicLong ewma, double sample, double weight) {
+    while (true) {
+      long currentBits = ewma.get();
+      double current = Double.longBitsToDouble(currentBits);
+      double updated = Double.isNaN(current) ? sample : current + weight * (sample - current);
+      if (ewma.compareAndSet(currentBits, Double.doubleToRawLongBits(updated))) {
+        return;
+      }
+    }
+  }
+  
+  /**
+   * @return the moving average latency in nanoseconds, 0 when no call was recorded yet
+   */
+  double latency() {
+    return valueOf(latencyEwma);
+  }
+  
+  /**
+   * @return the moving average of failed calls, between 0 and 1
+   */
+  double errorRate() {
+    return valueOf(errorRateEwma);
+  }
+  
+  private static double valueOf(AtomicLong ewma) {
+    double value = Double.longBitsToDouble(ewma.get());
+    return Double.isNaN(value) ? 0 : value;
+  }
+  
+  /**
+   * Success resets the consecutive failures. After enough consecutive successes the endpoint is
+   * considered recovered and the ejection backoff starts over. Shared state is only written when
+   * it changes, so a healthy endpoint costs a couple of reads per call.
+   */
+  void recordSuccess(int recoveryThreshold) {
+    if (consecutiveFailures.get() != 0) {
+      consecutiveFailures.set(0);
+    }
+    if (ejections.get() != 0 && consecutiveSuccesses.incrementAndGet() >= recoveryThreshold) {
+      ejections.set(0);
+      consecutiveSuccesses.set(0);
+    }
+  }
+  
+  /**
+   * @return the number of ejections including this one if this failure should eject the
+   * endpoint, 0 otherwise
+   */
+  int recordFailure(int ejectionThreshold) {
+    if (consecutiveSuccesses.get() != 0) {
+      consecutiveSuccesses.set(0);
+    }
+    if (consecutiveFailures.incrementAndGet() == ejectionThreshold) {
+      consecutiveFailures.set(0);
+      return ejections.incrementAndGet();
+    }
+    return 0;
+  }
+  
+  void eject(long until) {
+    ejectedUntil.set(until);
+  }
+  
+  void reinstate(long until) {
+    ejectedUntil.compareAndSet(until, 0);
+  }
+  
+  long ejectedUntil() {
+    return ejectedUntil.get();
+  }
+}
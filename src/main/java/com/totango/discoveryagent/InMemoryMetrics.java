@@ -0,0 +1,276 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Keeps the numbers reported to it in memory, for tests and for applications that read them
+ * directly. Once a name was seen recording under it does not allocate.
+ */
+public class InMemoryMetrics implements DiscoveryMetrics {
+
+  private final Map<String, Histogram> httpLatencies = new ConcurrentHashMap<>();
+  
+  private final Map<String, LongAdder> httpErrors = new ConcurrentHashMap<>();
+  
+  private final Map<String, Histogram> parseTimes = new ConcurrentHashMap<>();
+  
+  private final Map<String, LongAdder> parsedBytes = new ConcurrentHashMap<>();
+  
+  private final Map<String, LongAdder> cacheHits = new ConcurrentHashMap<>();
+  
+  private final Map<String, LongAdder> cacheMisses = new ConcurrentHashMap<>();
+  
+  private final Map<String, LongAdder> evictions = new ConcurrentHashMap<>();
+  
+  private final Map<String, Map<String, LongAdder>> wakeups = new ConcurrentHashMap<>();
+  
+  private final Map<String, Map<String, LongAdder>> unchangedWakeups = new ConcurrentHashMap<>();
+  
+  private final Map<String, Map<String, LongAdder>> retries = new ConcurrentHashMap<>();
+  
+  private final Map<String, Map<String, LongAdder>> indexResets = new ConcurrentHashMap<>();
+  
+  private final Map<String, Map<String, AtomicInteger>> subscribers = new ConcurrentHashMap<>();
+  
+  private final Map<String, Map<String, LongAdder>> picks = new ConcurrentHashMap<>();
+  
+  private final Map<String, LongAdder> noServiceAvailable = new ConcurrentHashMap<>();
+  
+  @Override
+  public void httpCall(String endpoint, long nanos, int status) {
+    get(httpLatencies, endpoint, name -> new Histogram()).record(nanos);
+    if (status < 0 || status >= 500) {
+      get(httpErrors, endpoint, name -> new LongAdder()).increment();
+    }
+  }
+  
+  @Override
+  public void parsed(String endpoint, long nanos, long bytes) {
+    get(parseTimes, endpoint, name -> new Histogram()).record(nanos);
+    get(parsedBytes, endpoint, name -> new LongAdder()).add(bytes);
+  }
+  
+  @Override
+  public void cacheHit(String serviceName) {
+    get(cacheHits, serviceName, name -> new LongAdder()).increment();
+  }
+  
+  @Override
+  public void cacheMiss(String serviceName) {
+    get(cacheMisses, serviceName, name -> new LongAdder()).increment();
+  }
+  
+  @Override
+  public void evicted(String serviceName) {
+    get(evictions, serviceName, name -> new LongAdder()).increment();
+  }
+  
+  @Override
+  public void wakeup(String kind, String name, boolean changed) {
+    counter(wakeups, kind, name).increment();
+    if (!changed) {
+      counter(unchangedWakeups, kind, name).increment();
+    }
+  }
+  
+  @Override
+  public void retried(String kind, String name) {
+    counter(retries, kind, name).increment();
+  }
+  
+  @Override
+  public void indexReset(String kind, String name) {
+    counter(indexResets, kind, name).increment();
+  }
+  
+  @Override
+  public void subscribed(String kind, String name) {
+    get(get(subscribers, kind, k -> new ConcurrentHashMap<>()), name, n -> new AtomicInteger()).incrementAndGet();
+  }
+  
+  @Override
+  public void unsubscribed(String kind, String name) {
+    get(get(subscribers, kind, k -> new ConcurrentHashMap<>()), name, n -> new AtomicInteger()).decrementAndGet();
+  }
+  
+  @Override
+  public void picked(String serviceName, String endpoint) {
+    counter(picks, serviceName, endpoint).increment();
+  }
+  
+  @Override
+  public void noServiceAvailable(String serviceName) {
+    get(noServiceAvailable, serviceName, name -> new LongAdder()).increment();
+  }
+  
+  /**
+   * @return the latencies of the calls to the Consul HTTP API, like "health/service"
+   */
+  public Histogram httpLatency(String endpoint) {
+    return httpLatencies.getOrDefault(endpoint, Histogram.EMPTY);
+  }
+  
+  /**
+   * @return the calls that failed or were answered with a 5xx status
+   */
+  public long httpErrors(String endpoint) {
+    return sum(httpErrors.get(endpoint));
+  }
+  
+  public Histogram parseTime(String endpoint) {
+    return parseTimes.getOrDefault(endpoint, Histogram.EMPTY);
+  }
+  
+  public long parsedBytes(String endpoint) {
+    return sum(parsedBytes.get(endpoint));
+  }
+  
+  public long cacheHits(String serviceName) {
+    return sum(cacheHits.get(serviceName));
+  }
+  
+  public long cacheMisses(String serviceName) {
+    return sum(cacheMisses.get(serviceName));
+  }
+  
+  public long evictions(String serviceName) {
+    return sum(evictions.get(serviceName));
+  }
+  
+  public long wakeups(String kind, String name) {
+    return sum(wakeups, kind, name);
+  }
+  
+  public long unchangedWakeups(String kind, String name) {
+    return sum(unchangedWakeups, kind, name);
+  }
+  
+  public long retries(String kind, String name) {
+    return sum(retries, kind, name);
+  }
+  
+  public long indexResets(String kind, String name) {
+    return sum(indexResets, kind, name);
+  }
+  
+  public int subscribers(String kind, String name) {
+    AtomicInteger count = subscribers.getOrDefault(kind, Collections.emptyMap()).get(name);
+    return count == null ? 0 : count.get();
+  }
+  
+  public long picks(String serviceName, String endpoint) {
+    return sum(picks, serviceName, endpoint);
+  }
+  
+  public long noServiceAvailableCount(String serviceName) {
+    return sum(noServiceAvailable.get(serviceName));
+  }
+  
+  // get() comes first since computeIfAbsent() may lock even when the entry exists
+  private static <V> V get(Map<String, V> map, String name, Function<String, V> create) {
+    V value = map.get(name);
+    return value != null ? value : map.computeIfAbsent(name, create);
+  }
+  
+  private static LongAdder counter(Map<String, Map<String, LongAdder>> counters, String group, String name) {
+    return get(get(counters, group, g -> new ConcurrentHashMap<>()), name, n -> new LongAdder());
+  }
+  
+  private static long sum(Map<String, Map<String, LongAdder>> counters, String group, String name) {
+    return sum(counters.getOrDefault(group, Collections.emptyMap()).get(name));
+  }
+  
+  private static long sum(LongAdder counter) {
+    return counter == null ? 0 : counter.sum();
+  }
+  
+  /**
+   * Counts durations in buckets whose upper bounds are powers of two of nanoseconds, so a
+   * percentile is known within a factor of two.
+   */
+  public static final class Histogram {
+    
+    static final Histogram EMPTY = new Histogram();
+    
+    private static final int BUCKETS = 64;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    
+    private final LongAdder count = new LongAdder();
+    
+    private final LongAdder totalNanos = new LongAdder();
+    
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    void record(long nanos) {
+      long value = Math.max(nanos, 0);
+      buckets.incrementAndGet(bucket(value));
+      count.increment();
+      totalNanos.add(value);
+      long max = maxNanos.get();
+      while (value > max && !maxNanos.compareAndSet(max, value)) {
+        max = maxNanos.get();
+      }
+    }
+    
+    // Bucket i holds the values up to 2^i - 1
+    private static int bucket(long value) {
+      return BUCKETS - Long.numberOfLeadingZeros(value);
+    }
+    
+    public long count() {
+      return count.sum();
+    }
+    
+    public long totalNanos() {
+      return totalNanos.sum();
+    }
+    
+    public long maxNanos() {
+      return maxNanos.get();
+    }
+    
+    /**
+     * @param percentile between 0 and 1
+     * @return the upper bound of the bucket holding the percentile, capped by the max
+     */
+    public long percentileNanos(double percentile) {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        total += buckets.get(i);
+      }
+      long rank = (long) Math.ceil(total * percentile);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank && seen > 0) {
+          return Math.min((1L << i) - 1, maxNanos());
+        }
+      }
+      return 0;
+    }
+  }
+}
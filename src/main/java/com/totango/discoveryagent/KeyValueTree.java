@@ -0,0 +1,97 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.totango.discoveryagent.model.Value;
+import com.totango.discoveryagent.model.ValueChanges;
+import com.totango.discoveryagent.model.ValueGroup;
+
+/**
+ * The values under a watched prefix at one Consul index, along with the changes from the
+ * previous tree. Trees are immutable, every update builds the next one.
+ */
+final class KeyValueTree {
+
+  static final KeyValueTree EMPTY = new KeyValueTree(Collections.emptyMap(), "0",
+      new ValueChanges(Collections.emptyList(), Collections.emptyList(), Collections.emptyList()));
+  
+  // In the order Consul returned them, which is sorted by key
+  private final Map<String, Value> values;
+  
+  private final String index;
+  
+  private final ValueChanges changes;
+  
+  private KeyValueTree(Map<String, Value> values, String index, ValueChanges changes) {
+    this.values = values;
+    this.index = index;
+    this.changes = changes;
+  }
+  
+  String index() {
+    return index;
+  }
+  
+  ValueChanges changes() {
+    return changes;
+  }
+  
+  /**
+   * @return all the values of the tree as added, for a subscriber that has not seen it yet
+   */
+  ValueChanges asAdded() {
+    return new ValueChanges(new ArrayList<>(values.values()), Collections.emptyList(), Collections.emptyList());
+  }
+  
+  // Values whose ModifyIndex did not change are carried over so an update only costs
+  // allocations for the keys that actually changed
+  KeyValueTree next(ValueGroup valueGroup) {
+    List<Value> added = new ArrayList<>();
+    List<Value> changed = new ArrayList<>();
+    Map<String, Value> nextValues = new LinkedHashMap<>(valueGroup.getValues().size() * 2);
+    for (Value value : valueGroup.getValues()) {
+      Value previous = values.get(value.getKey());
+      if (previous == null) {
+        added.add(value);
+        nextValues.put(value.getKey(), value);
+      } else if (previous.getModifyIndex() != value.getModifyIndex()) {
+        changed.add(value);
+        nextValues.put(value.getKey(), value);
+      } else {
+        nextValues.put(value.getKey(), previous);
+      }
+    }
+    
+    List<Value> removed = new ArrayList<>();
+    if (nextValues.size() != values.size() + added.size()) {
+      for (Value value : values.values()) {
+        if (!nextValues.containsKey(value.getKey())) {
+          removed.add(value);
+        }
+      }
+    }
+    
+    String nextIndex = valueGroup.getIndex().orElse(index);
+    return new KeyValueTree(nextValues, nextIndex, new ValueChanges(added, removed, changed));
+  }
+}
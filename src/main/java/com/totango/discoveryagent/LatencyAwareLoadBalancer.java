@@ -0,0 +1,110 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times every call and keeps an exponentially weighted moving average of the latency and of
+ * the error rate of every endpoint. Two random endpoints are compared by their expected cost,
+ * the average latency times the calls already in flight, raised by the error rate, and the
+ * cheaper one is picked. A failed call counts as slow as the peak latency of the recent
+ * successful calls, so an endpoint that fails fast does not look fast. The peak follows a slower
+ * call at once and decays toward the latest calls by the same weight as the averages, so one
+ * slow call does not weigh on failures for the lifetime of the balancer. An endpoint with no
+ * calls recorded yet is assumed to be as fast as the one it is compared with, so it is tried
+ * without every pick herding onto it.
+ */
+public class LatencyAwareLoadBalancer extends AbstractLoadBalancer {
+
+  private static final double DEFAULT_WEIGHT = 0.2;
+  
+  // An endpoint that always fails still costs a finite amount so it is probed once in a while
+  private static final double MIN_SUCCESS_RATE = 0.05;
+  
+  private final double weight;
+  
+  // The peak latency of the recent successful calls, in nanoseconds, which is the latency
+  // recorded for failed calls
+  private final AtomicLong peakLatency = new AtomicLong();
+  
+  public LatencyAwareLoadBalancer(DiscoveryService discoveryService, String serviceName) {
+    this(discoveryService, serviceName, DEFAULT_WEIGHT);
+  }
+  
+  /**
+   * @param weight of the latest call in the moving averages, between 0 (exclusive) and 1
+   */
+  public LatencyAwareLoadBalancer(DiscoveryService discoveryService, String serviceName, double weight) {
+    super(discoveryService, serviceName);
+    if (weight <= 0 || weight > 1) {
+      throw new IllegalArgumentException("Weight should be greater than 0 and at most 1");
+    }
+    this.weight = weight;
+  }
+
+  @Override
+  int choose(EndpointSnapshot snapshot) {
+    int size = snapshot.size();
+    if (size == 1) {
+      return 0;
+    }
+    
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(size);
+    int second = random.nextInt(size - 1);
+    if (second >= first) {
+      second++;
+    }
+    EndpointStats firstStats = snapshot.stats(first);
+    EndpointStats secondStats = snapshot.stats(second);
+    double firstLatency = firstStats.latency();
+    double secondLatency = secondStats.latency();
+    if (firstLatency == 0) {
+      firstLatency = secondLatency == 0 ? 1 : secondLatency;
+    }
+    if (secondLatency == 0) {
+      secondLatency = firstLatency;
+    }
+    return cost(secondStats, secondLatency) < cost(firstStats, firstLatency) ? second : first;
+  }
+  
+  private static double cost(EndpointStats stats, double latency) {
+    double successRate = Math.max(1 - stats.errorRate(), MIN_SUCCESS_RATE);
+    return latency * (stats.inFlight() + 1) / successRate;
+  }
+  
+  @Override
+  long callStarted(EndpointStats stats) {
+    stats.callStarted();
+    return System.nanoTime();
+  }
+  
+  @Override
+  void callEnded(EndpointStats stats, long started, Throwable failure) {
+    stats.callEnded();
+    long latency = System.nanoTime() - started;
+    if (failure != null) {
+      stats.recordCall(Math.max(latency, peakLatency.get()), true, weight);
+      return;
+    }
+    peakLatency.accumulateAndGet(latency,
+        (peak, sample) -> sample >= peak ? sample : peak + (long) (weight * (sample - peak)));
+    stats.recordCall(latency, false, weight);
+  }
+}
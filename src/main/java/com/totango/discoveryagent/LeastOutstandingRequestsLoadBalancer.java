@@ -0,0 +1,58 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sends each call to the endpoint with the fewest calls in flight. The scan starts at a random
+ * endpoint so ties are spread instead of always going to the first one.
+ */
+public class LeastOutstandingRequestsLoadBalancer extends AbstractLoadBalancer {
+
+  public LeastOutstandingRequestsLoadBalancer(DiscoveryService discoveryService, String serviceName) {
+    super(discoveryService, serviceName);
+  }
+
+  @Override
+  int choose(EndpointSnapshot snapshot) {
+    int size = snapshot.size();
+    int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+    int best = start;
+    int bestInFlight = snapshot.stats(start).inFlight();
+    for (int n = 1; n < size && bestInFlight > 0; n++) {
+      int i = (start + n) % size;
+      int inFlight = snapshot.stats(i).inFlight();
+      if (inFlight < bestInFlight) {
+        best = i;
+        bestInFlight = inFlight;
+      }
+    }
+    return best;
+  }
+  
+  @Override
+  long callStarted(EndpointStats stats) {
+    stats.callStarted();
+    return 0;
+  }
+  
+  @Override
+  void callEnded(EndpointStats stats, long started, Throwable failure) {
+    stats.callEnded();
+  }
+}
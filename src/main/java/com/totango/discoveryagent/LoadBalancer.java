@@ -16,9 +16,28 @@
  */
 package com.totango.discoveryagent;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.function.Function;
+
 import com.totango.discoveryagent.RoundRobinLoadBalancer.Function2;
 
 public interface LoadBalancer {
 
+  /**
+   * Starts listening for the endpoints of the service, balancers that need no setup keep this
+   * no-op.
+   */
+  public default void init() throws IOException {
+  }
+
   public <T> T withNextEndpoint(Function2<String, Integer, T> func) throws NoServiceAvailable;
+  
+  /**
+   * Passes the address of the next endpoint. IP addresses are resolved, host names are passed
+   * unresolved so they are looked up when connecting.
+   */
+  public default <T> T withNextAddress(Function<InetSocketAddress, T> func) throws NoServiceAvailable {
+    return withNextEndpoint((host, port) -> func.apply(EndpointSnapshot.socketAddress(host, port)));
+  }
 }
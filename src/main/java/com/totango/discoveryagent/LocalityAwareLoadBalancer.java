@@ -0,0 +1,136 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import rx.Subscription;
+import rx.functions.Action1;
+
+import com.totango.discoveryagent.model.Service;
+
+/**
+ * Watches a service in several datacenters and sends calls round robin to the endpoints of the
+ * local datacenter. Remote endpoints are only used, together with the local ones, once fewer
+ * than the given number of local endpoints are healthy and not ejected.
+ */
+public class LocalityAwareLoadBalancer extends AbstractLoadBalancer {
+
+  private final String localDatacenter;
+  
+  private final int minLocalEndpoints;
+  
+  private final RoundRobinCounter nextServiceCounter = RoundRobinCounter.shared();
+  
+  private List<String> datacenters;
+  
+  /**
+   * The remote datacenters are all the datacenters known to the Consul cluster.
+   */
+  public LocalityAwareLoadBalancer(DiscoveryService discoveryService, String serviceName,
+      String localDatacenter, int minLocalEndpoints) {
+    this(discoveryService, serviceName, localDatacenter, null, minLocalEndpoints);
+  }
+  
+  /**
+   * @param minLocalEndpoints below this number of healthy local endpoints the remote ones are used too
+   */
+  public LocalityAwareLoadBalancer(DiscoveryService discoveryService, String serviceName,
+      String localDatacenter, List<String> remoteDatacenters, int minLocalEndpoints) {
+    super(discoveryService, serviceName);
+    if (minLocalEndpoints < 1) {
+      throw new IllegalArgumentException("Minimum local endpoints should be at least 1");
+    }
+    this.localDatacenter = localDatacenter;
+    this.minLocalEndpoints = minLocalEndpoints;
+    if (remoteDatacenters != null) {
+      this.datacenters = withLocalFirst(remoteDatacenters);
+    }
+  }
+  
+  @Override
+  public void init() throws IOException {
+    if (datacenters == null) {
+      datacenters = withLocalFirst(discoveryService.datacenters());
+    }
+    super.init();
+  }
+  
+  private List<String> withLocalFirst(List<String> remoteDatacenters) {
+    List<String> all = new ArrayList<>(remoteDatacenters.size() + 1);
+    all.add(localDatacenter);
+    for (String datacenter : remoteDatacenters) {
+      if (!datacenter.equals(localDatacenter)) {
+        all.add(datacenter);
+      }
+    }
+    return all;
+  }
+  
+  @Override
+  List<Service> discover() throws IOException {
+    return discoveryService.getServices(serviceName, datacenters);
+  }
+  
+  @Override
+  Subscription listen(Action1<List<Service>> onNext, Action1<Throwable> onError) {
+    return discoveryService.subscribe(serviceName, datacenters, onNext, onError);
+  }
+  
+  // Local endpoints are moved to the head of the snapshot so picking among them is a
+  // round robin over its first entries
+  @Override
+  EndpointSnapshot snapshot(List<Service> services, EndpointSnapshot previous) {
+    List<Service> ordered = new ArrayList<>(services.size());
+    for (Service service : services) {
+      if (localDatacenter.equals(service.getDatacenter())) {
+        ordered.add(service);
+      }
+    }
+    int local = ordered.size();
+    for (Service service : services) {
+      if (!localDatacenter.equals(service.getDatacenter())) {
+        ordered.add(service);
+      }
+    }
+    return new EndpointSnapshot(ordered, local, previous);
+  }
+  
+  @Override
+  int choose(EndpointSnapshot snapshot) {
+    int local = snapshot.preferred();
+    int available = 0;
+    for (int i = 0; i < local; i++) {
+      available += isEjected(snapshot.stats(i)) ? 0 : 1;
+    }
+    if (available < minLocalEndpoints) {
+      return nextServiceCounter.next(snapshot.size());
+    }
+    
+    // The round robin runs over the local endpoints that are not ejected
+    int n = nextServiceCounter.next(available);
+    for (int i = 0; i < local; i++) {
+      if (!isEjected(snapshot.stats(i)) && n-- == 0) {
+        return i;
+      }
+    }
+    // An endpoint was ejected meanwhile, any local endpoint will do
+    return nextServiceCounter.next(local);
+  }
+}
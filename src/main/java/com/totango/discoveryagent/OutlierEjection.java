@@ -0,0 +1,108 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passive outlier detection for a load balancer. An endpoint is ejected after the function
+ * passed to withNextEndpoint() fails on it a number of consecutive times and is reinstated once
+ * the ejection time has passed, regardless of what Consul reports. Each ejection that follows
+ * without the endpoint recovering in between doubles the ejection time, up to a maximum.
+ * 
+ * All the bookkeeping is kept per endpoint, there is no lock or state shared between endpoints.
+ */
+public class OutlierEjection {
+
+  private final int consecutiveFailures;
+  
+  private final long baseEjectionNanos;
+  
+  private final long maxEjectionNanos;
+  
+  private OutlierEjection(int consecutiveFailures, long baseEjectionNanos, long maxEjectionNanos) {
+    this.consecutiveFailures = consecutiveFailures;
+    this.baseEjectionNanos = baseEjectionNanos;
+    this.maxEjectionNanos = maxEjectionNanos;
+  }
+  
+  boolean isEjected(EndpointStats stats) {
+    long ejectedUntil = stats.ejectedUntil();
+    if (ejectedUntil == 0) {
+      return false;
+    }
+    if (System.nanoTime() - ejectedUntil < 0) {
+      return true;
+    }
+    stats.reinstate(ejectedUntil);
+    return false;
+  }
+  
+  void recordSuccess(EndpointStats stats) {
+    stats.recordSuccess(consecutiveFailures);
+  }
+  
+  void recordFailure(EndpointStats stats) {
+    int ejections = stats.recordFailure(consecutiveFailures);
+    if (ejections > 0) {
+      long ejectionNanos = baseEjectionNanos << Math.min(ejections - 1, 30);
+      if (ejectionNanos <= 0 || ejectionNanos > maxEjectionNanos) {
+        ejectionNanos = maxEjectionNanos;
+      }
+      // 0 marks an endpoint that is not ejected
+      stats.eject((System.nanoTime() + ejectionNanos) | 1);
+    }
+  }
+  
+  public static final Builder ejection() {
+    return new Builder();
+  }
+  
+  public static class Builder {
+    
+    private int consecutiveFailures = 5;
+    
+    private long baseEjectionNanos = TimeUnit.SECONDS.toNanos(30);
+    
+    private long maxEjectionNanos = TimeUnit.MINUTES.toNanos(5);
+    
+    public Builder afterConsecutiveFailures(int consecutiveFailures) {
+      this.consecutiveFailures = consecutiveFailures;
+      return this;
+    }
+    
+    public Builder baseEjectionTime(long duration, TimeUnit unit) {
+      this.baseEjectionNanos = unit.toNanos(duration);
+      return this;
+    }
+    
+    public Builder maxEjectionTime(long duration, TimeUnit unit) {
+      this.maxEjectionNanos = unit.toNanos(duration);
+      return this;
+    }
+    
+    public OutlierEjection build() {
+      if (consecutiveFailures < 1) {
+        throw new IllegalArgumentException("Consecutive failures should be at least 1");
+      }
+      if (baseEjectionNanos <= 0 || maxEjectionNanos < baseEjectionNanos) {
+        throw new IllegalArgumentException("Ejection time should be positive and not exceed the max ejection time");
+      }
+      return new OutlierEjection(consecutiveFailures, baseEjectionNanos, maxEjectionNanos);
+    }
+  }
+}
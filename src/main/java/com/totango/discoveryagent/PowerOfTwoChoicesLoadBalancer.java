@@ -0,0 +1,57 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two endpoints at random and sends the call to the one with fewer calls in flight.
+ * It avoids overloaded endpoints almost as well as scanning all of them, at a constant cost.
+ */
+public class PowerOfTwoChoicesLoadBalancer extends AbstractLoadBalancer {
+
+  public PowerOfTwoChoicesLoadBalancer(DiscoveryService discoveryService, String serviceName) {
+    super(discoveryService, serviceName);
+  }
+
+  @Override
+  int choose(EndpointSnapshot snapshot) {
+    int size = snapshot.size();
+    if (size == 1) {
+      return 0;
+    }
+    
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(size);
+    int second = random.nextInt(size - 1);
+    if (second >= first) {
+      second++;
+    }
+    return snapshot.stats(second).inFlight() < snapshot.stats(first).inFlight() ? second : first;
+  }
+  
+  @Override
+  long callStarted(EndpointStats stats) {
+    stats.callStarted();
+    return 0;
+  }
+  
+  @Override
+  void callEnded(EndpointStats stats, long started, Throwable failure) {
+    stats.callEnded();
+  }
+}
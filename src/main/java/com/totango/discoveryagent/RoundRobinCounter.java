@@ -0,0 +1,46 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+/**
+ * Picks the position of the next endpoint for a {@link RoundRobinLoadBalancer}.
+ */
+public interface RoundRobinCounter {
+
+  /**
+   * @param size the number of endpoints, always greater than 0
+   * @return a position between 0 and size - 1
+   */
+  public int next(int size);
+  
+  /**
+   * A single counter shared by all the threads. Picks are strictly in turn but every pick
+   * writes the same memory location, which becomes contended with many request threads.
+   */
+  public static RoundRobinCounter shared() {
+    return new SharedRoundRobinCounter();
+  }
+  
+  /**
+   * Cursors striped by thread over separate cache lines, each starting at a random position.
+   * Concurrent threads rarely write the same location, and since every stripe cycles through
+   * all the endpoints the load is still spread evenly.
+   */
+  public static RoundRobinCounter striped() {
+    return new StripedRoundRobinCounter();
+  }
+}
@@ -16,67 +16,27 @@
  */
 package com.totango.discoveryagent;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
+public class RoundRobinLoadBalancer extends AbstractLoadBalancer {
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import rx.Subscription;
-
-import com.totango.discoveryagent.model.Service;
-
-public class RoundRobinLoadBalancer implements LoadBalancer {
-
-  private static final Logger Logger =  LoggerFactory.getLogger(RoundRobinLoadBalancer.class);
-  
-  private List<Service> services = new ArrayList<>();
-  
-  @SuppressWarnings("unused")
-  private Subscription discoverySubscription;
-  
-  private AtomicInteger nextServiceCounter = new AtomicInteger(-1);
-
-  private String serviceName;
-
-  private DiscoveryService discoveryService;
+  private final RoundRobinCounter nextServiceCounter;
 
   public RoundRobinLoadBalancer(DiscoveryService discoveryService, String serviceName) {
-    this.serviceName = serviceName;
-    this.discoveryService = discoveryService;
-  }
-  
-  public void init() throws IOException {
-    this.services = discoveryService.getServices(serviceName);
-    this.discoverySubscription = discoveryService.subscribe(serviceName, services -> {
-      this.services = services;
-    }, throwable -> {
-      Logger.error(String.format("Failed to listen for \"%s\" service", serviceName), throwable);
-    });
+    this(discoveryService, serviceName, RoundRobinCounter.shared());
   }
   
-  public <T> T withNextEndpoint(Function2<String, Integer, T> func) throws NoServiceAvailable  {
-    Optional<Service> service = nextService();
-    if (!service.isPresent()) {
-      throw new NoServiceAvailable(String.format("There is no \"%s\" service available", serviceName));
-    }
-    return func.apply(service.get().getServiceAddress(), service.get().getServicePort());
+  public RoundRobinLoadBalancer(DiscoveryService discoveryService, String serviceName,
+      RoundRobinCounter nextServiceCounter) {
+    super(discoveryService, serviceName);
+    this.nextServiceCounter = nextServiceCounter;
   }
   
-  private Optional<Service> nextService() {
-    if (services.isEmpty()) {
-      return Optional.empty();
-    }
-    int next = nextServiceCounter.incrementAndGet();
-    int i = next % services.size();
-    return Optional.of(services.get(i));
+  @Override
+  int choose(EndpointSnapshot snapshot) {
+    return nextServiceCounter.next(snapshot.size());
   }
   
   @FunctionalInterface
-  interface Function2 <A, B, T> {
+  public interface Function2 <A, B, T> {
     public T apply (A a, B b);
   }
 }
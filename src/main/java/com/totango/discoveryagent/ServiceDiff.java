@@ -0,0 +1,70 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import rx.functions.Func1;
+
+import com.totango.discoveryagent.model.Service;
+import com.totango.discoveryagent.model.ServiceChanges;
+
+/**
+ * Turns every service list into the changes from the previous one. It keeps the previous list
+ * so it serves a single subscriber.
+ */
+class ServiceDiff implements Func1<List<Service>, ServiceChanges> {
+
+  private Map<String, Service> previous = Collections.emptyMap();
+  
+  // A service ID is only unique within its node, and node names only within their datacenter
+  static String key(Service service) {
+    String key = service.getNode() + "/" + service.getServiceId();
+    return service.getDatacenter() == null ? key : service.getDatacenter() + "/" + key;
+  }
+  
+  @Override
+  public ServiceChanges call(List<Service> services) {
+    List<Service> added = new ArrayList<>();
+    List<Service> modified = new ArrayList<>();
+    Map<String, Service> current = new HashMap<>(services.size() * 2);
+    for (Service service : services) {
+      String key = key(service);
+      current.put(key, service);
+      Service last = previous.get(key);
+      if (last == null) {
+        added.add(service);
+      } else if (!last.equals(service)) {
+        modified.add(service);
+      }
+    }
+    
+    List<Service> removed = new ArrayList<>();
+    for (Map.Entry<String, Service> entry : previous.entrySet()) {
+      if (!current.containsKey(entry.getKey())) {
+        removed.add(entry.getValue());
+      }
+    }
+    
+    previous = current;
+    return new ServiceChanges(added, removed, modified);
+  }
+}
@@ -16,18 +16,34 @@
  */
 package com.totango.discoveryagent;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 public class ServiceRequest {
 
   private String serviceName; 
   private String index = "0"; 
-  private String tag;
+  private List<String> tags;
+  private String datacenter;
+  private Map<String, String> nodeMeta;
+  private String filter;
+  private boolean catalog;
   
-  private ServiceRequest(String serviceName, String index, String tag) {
+  private ServiceRequest(String serviceName, String index, List<String> tags, String datacenter,
+      Map<String, String> nodeMeta, String filter, boolean catalog) {
     this.serviceName = serviceName;
     this.index = index;
-    this.tag = tag;
+    this.tags = tags;
+    this.datacenter = datacenter;
+    this.nodeMeta = nodeMeta;
+    this.filter = filter;
+    this.catalog = catalog;
   }
   
   public String serviceName() {
@@ -38,8 +54,35 @@ public class ServiceRequest {
     return index;
   }
 
+  /**
+   * @return the first tag in alphabetical order or null when there is none
+   */
   public String tag() {
-    return tag;
+    return tags.isEmpty() ? null : tags.get(0);
+  }
+  
+  /**
+   * @return the tags sorted and without duplicates, so requests for the same tags are equal
+   * whatever the order they were given in
+   */
+  public List<String> tags() {
+    return tags;
+  }
+
+  public String datacenter() {
+    return datacenter;
+  }
+  
+  public Map<String, String> nodeMeta() {
+    return nodeMeta;
+  }
+  
+  public String filter() {
+    return filter;
+  }
+  
+  public boolean catalog() {
+    return catalog;
   }
 
   @Override
@@ -54,31 +97,107 @@ public class ServiceRequest {
 
     return Objects.equals(serviceName, that.serviceName)
         && Objects.equals(index, that.index)
-        && Objects.equals(tag, that.tag);
+        && Objects.equals(tags, that.tags)
+        && Objects.equals(datacenter, that.datacenter)
+        && Objects.equals(nodeMeta, that.nodeMeta)
+        && Objects.equals(filter, that.filter)
+        && catalog == that.catalog;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(serviceName, index, tag);
+    return Objects.hash(serviceName, index, tags, datacenter, nodeMeta, filter, catalog);
   }
   
   public static final Builder request() {
     return new Builder();
   }
   
+  /**
+   * @return a builder holding everything this request holds
+   */
+  public Builder toBuilder() {
+    Builder builder = new Builder()
+        .forService(serviceName)
+        .inDatacenter(datacenter)
+        .withFilter(filter)
+        .lastUpdateIndex(index);
+    builder.tags.addAll(tags);
+    nodeMeta.forEach(builder::withNodeMeta);
+    builder.catalog = catalog;
+    return builder;
+  }
+  
   public static class Builder {
   
     private String serviceName; 
     private String index = "0"; 
-    private String tag;
+    private SortedSet<String> tags = new TreeSet<>();
+    private String datacenter;
+    private Map<String, String> nodeMeta = new LinkedHashMap<>();
+    private String filter;
+    private boolean catalog;
     
     public Builder forService(String name) {
       this.serviceName = name;
       return this;
     }
     
+    /**
+     * Replaces the tags set so far, a null tag leaves the request without tags.
+     */
     public Builder withTag(String tag) {
-      this.tag = tag;
+      this.tags.clear();
+      if (tag != null) {
+        this.tags.add(tag);
+      }
+      return this;
+    }
+    
+    /**
+     * Replaces the tags set so far, only the instances that have all of them are returned.
+     * Null tags are ignored.
+     */
+    public Builder withTags(String... tags) {
+      this.tags.clear();
+      for (String tag : tags) {
+        if (tag != null) {
+          this.tags.add(tag);
+        }
+      }
+      return this;
+    }
+    
+    /**
+     * Only the instances on nodes with the given metadata are returned, can be called for several keys.
+     */
+    public Builder withNodeMeta(String key, String value) {
+      this.nodeMeta.put(key, value);
+      return this;
+    }
+    
+    /**
+     * @param filter a Consul filter expression, like "Service.Meta.version == 2", evaluated by
+     * Consul so the instances it leaves out are not sent at all
+     */
+    public Builder withFilter(String filter) {
+      this.filter = filter;
+      return this;
+    }
+    
+    /**
+     * Reads the instances from the catalog instead of the health endpoint. Catalog entries
+     * leave out the checks, so they are smaller to send and to parse, but every registered
+     * instance is returned whether its checks pass or not. Fits services whose failures are
+     * handled by the caller, like with outlier ejection.
+     */
+    public Builder fromCatalog() {
+      this.catalog = true;
+      return this;
+    }
+    
+    public Builder inDatacenter(String datacenter) {
+      this.datacenter = datacenter;
       return this;
     }
     
@@ -91,7 +210,8 @@ public class ServiceRequest {
       if (serviceName == null) {
         throw new NullPointerException(String.valueOf("Service Name is mandatory"));
       }
-      return new ServiceRequest(serviceName, index, tag);
+      return new ServiceRequest(serviceName, index, Collections.unmodifiableList(new ArrayList<>(tags)),
+          datacenter, Collections.unmodifiableMap(new LinkedHashMap<>(nodeMeta)), filter, catalog);
     }
   }
 }
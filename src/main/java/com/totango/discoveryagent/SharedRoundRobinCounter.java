@@ -0,0 +1,38 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SharedRoundRobinCounter implements RoundRobinCounter {
+
+  private final AtomicInteger counter;
+  
+  SharedRoundRobinCounter() {
+    this(-1);
+  }
+  
+  SharedRoundRobinCounter(int initialValue) {
+    this.counter = new AtomicInteger(initialValue);
+  }
+  
+  @Override
+  public int next(int size) {
+    // Masking the sign bit keeps the position positive after the counter overflows
+    return (counter.incrementAndGet() & Integer.MAX_VALUE) % size;
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.totango.discoveryagent.gson.ServiceTypeAdapter;
+import com.totango.discoveryagent.gson.ValueTypeAdapter;
+import com.totango.discoveryagent.model.Service;
+import com.totango.discoveryagent.model.ServiceGroup;
+import com.totango.discoveryagent.model.Value;
+
+import static com.totango.discoveryagent.ServiceRequest.request;
+
+/**
+ * Keeps the last known service groups and key values in a local file so they are available
+ * right away after a restart, even when the Consul agent is not. Writes are done on a
+ * background thread and a burst of updates is written once.
+ */
+class SnapshotFile {
+
+  private static final Logger Logger =  LoggerFactory.getLogger(SnapshotFile.class);
+  
+  private static final long WRITE_DELAY_MILLIS = 1000;
+  
+  private final Path path;
+  
+  private final Gson gson = new GsonBuilder()
+      .registerTypeAdapter(Service.class, new ServiceTypeAdapter())
+      .registerTypeAdapter(Value.class, new ValueTypeAdapter())
+      .create();
+  
+  private final AtomicBoolean writePending = new AtomicBoolean();
+  
+  private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "discovery-snapshot");
+    thread.setDaemon(true);
+    return thread;
+  });
+  
+  SnapshotFile(Path path) {
+    this.path = path;
+  }
+  
+  /**
+   * Adds the content of the file to the given maps, a missing or unreadable file adds nothing.
+   */
+  void load(Map<ServiceRequest, ServiceGroup> serviceGroups, Map<String, Value> values) {
+    Snapshot snapshot;
+    try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      snapshot = gson.fromJson(reader, Snapshot.class);
+    } catch (NoSuchFileException e) {
+      return;
+    } catch (IOException | JsonParseException e) {
+      Logger.warn(String.format("Failed to read discovery snapshot \"%s\"", path), e);
+      return;
+    }
+    if (snapshot == null) {
+      return;
+    }
+    
+    if (snapshot.services != null) {
+      for (ServiceEntry entry : snapshot.services) {
+        ServiceRequest.Builder builder = request()
+            .forService(entry.serviceName)
+            .withFilter(entry.filter)
+            .inDatacenter(entry.datacenter);
+        if (entry.tags != null) {
+          builder.withTags(entry.tags.toArray(new String[entry.tags.size()]));
+        }
+        if (entry.nodeMeta != null) {
+          entry.nodeMeta.forEach(builder::withNodeMeta);
+        }
+        if (entry.catalog) {
+          builder.fromCatalog();
+        }
+        ServiceRequest key = builder.build();
+        serviceGroups.put(key, new ServiceGroup(entry.services, Optional.ofNullable(entry.index)));
+      }
+    }
+    if (snapshot.values != null) {
+      for (Value value : snapshot.values) {
+        values.put(value.getKey(), value);
+      }
+    }
+  }
+  
+  /**
+   * Writes the maps a moment later, the maps are read when the write actually happens.
+   */
+  void writeLater(Map<ServiceRequest, ServiceGroup> serviceGroups, Map<String, Value> values) {
+    if (writePending.compareAndSet(false, true)) {
+      writer.schedule(() -> {
+        writePending.set(false);
+        try {
+          write(serviceGroups, values);
+        } catch (IOException e) {
+          Logger.warn(String.format("Failed to write discovery snapshot \"%s\"", path), e);
+        }
+      }, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+  
+  // The snapshot is written next to the file and moved over it so a crash never leaves
+  // a half written file behind
+  void write(Map<ServiceRequest, ServiceGroup> serviceGroups, Map<String, Value> values) throws IOException {
+    Snapshot snapshot = new Snapshot();
+    snapshot.services = new ArrayList<>(serviceGroups.size());
+    serviceGroups.forEach((key, serviceGroup) -> {
+      ServiceEntry entry = new ServiceEntry();
+      entry.serviceName = key.serviceName();
+      entry.tags = key.tags().isEmpty() ? null : key.tags();
+      entry.nodeMeta = key.nodeMeta().isEmpty() ? null : key.nodeMeta();
+      entry.filter = key.filter();
+      entry.catalog = key.catalog();
+      entry.datacenter = key.datacenter();
+      entry.index = serviceGroup.getIndex().orElse(null);
+      entry.services = serviceGroup.getServices();
+      snapshot.services.add(entry);
+    });
+    snapshot.values = new ArrayList<>(values.values());
+    
+    Path directory = path.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        gson.toJson(snapshot, writer);
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+  
+  private static class Snapshot {
+    List<ServiceEntry> services;
+    List<Value> values;
+  }
+  
+  private static class ServiceEntry {
+    String serviceName;
+    List<String> tags;
+    Map<String, String> nodeMeta;
+    String filter;
+    boolean catalog;
+    String datacenter;
+    String index;
+    List<Service> services;
+  }
+}
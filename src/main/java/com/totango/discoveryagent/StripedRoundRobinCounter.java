@@ -0,0 +1,56 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+class StripedRoundRobinCounter implements RoundRobinCounter {
+
+  // 16 ints are 64 bytes, so every stripe sits on its own cache line
+  private static final int PADDING = 16;
+  
+  private final AtomicIntegerArray stripes;
+  
+  private final int mask;
+  
+  StripedRoundRobinCounter() {
+    this(Runtime.getRuntime().availableProcessors() * 2);
+  }
+  
+  StripedRoundRobinCounter(int minStripes) {
+    this(minStripes, -1);
+  }
+  
+  // A negative initial value starts every stripe at a random position
+  StripedRoundRobinCounter(int minStripes, int initialValue) {
+    int size = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+    this.mask = size - 1;
+    this.stripes = new AtomicIntegerArray(size * PADDING);
+    for (int i = 0; i < size; i++) {
+      stripes.set(i * PADDING, initialValue < 0 ? ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE) : initialValue);
+    }
+  }
+  
+  @Override
+  public int next(int size) {
+    // Thread ids are handed out in sequence, so concurrent threads mostly land on different stripes
+    int stripe = (int) Thread.currentThread().getId() & mask;
+    int next = stripes.getAndIncrement(stripe * PADDING);
+    return (next & Integer.MAX_VALUE) % size;
+  }
+}
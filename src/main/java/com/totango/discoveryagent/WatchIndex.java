@@ -0,0 +1,97 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the X-Consul-Index returned to a watch. An index that is not positive or that went
+ * backwards, like after the Consul servers lost their state, would make the next blocking query
+ * return right away or block for the whole wait time. Such an index is replaced by 0, so the
+ * watch starts over, and the watch backs off a little longer after every consecutive reset.
+ */
+final class WatchIndex {
+
+  private static final Logger Logger =  LoggerFactory.getLogger(WatchIndex.class);
+  
+  private static final Optional<String> RESET_INDEX = Optional.of("0");
+  
+  private static final long BASE_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+  
+  private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+  
+  private final String description;
+  
+  private final Runnable onReset;
+  
+  private final AtomicInteger consecutiveResets = new AtomicInteger();
+  
+  /**
+   * @param description of what is watched, for the logs
+   * @param onReset called on every reset
+   */
+  WatchIndex(String description, Runnable onReset) {
+    this.description = description;
+    this.onReset = onReset;
+  }
+  
+  /**
+   * @param requested the index the query was made with
+   * @param returned the index Consul returned, a response without one is not checked
+   * @return the index to make the next query with
+   */
+  Optional<String> next(String requested, Optional<String> returned) {
+    if (!returned.isPresent()) {
+      return returned;
+    }
+    long index = parse(returned.get());
+    if (index > 0 && index >= parse(requested)) {
+      consecutiveResets.set(0);
+      return returned;
+    }
+    
+    consecutiveResets.incrementAndGet();
+    onReset.run();
+    Logger.warn("Consul index of {} went from {} to {}, starting over", description, requested, returned.get());
+    return RESET_INDEX;
+  }
+  
+  /**
+   * @return how long to wait before the next query, 0 unless the last query reset the index
+   */
+  long backoffNanos() {
+    int resets = consecutiveResets.get();
+    if (resets == 0) {
+      return 0;
+    }
+    long backoff = BASE_BACKOFF_NANOS << Math.min(resets - 1, 30);
+    return backoff <= 0 || backoff > MAX_BACKOFF_NANOS ? MAX_BACKOFF_NANOS : backoff;
+  }
+  
+  private static long parse(String index) {
+    try {
+      return Long.parseLong(index);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
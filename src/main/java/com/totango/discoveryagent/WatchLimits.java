@@ -0,0 +1,148 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often the watches of a {@link DiscoveryService} call Consul. Every watch waits at
+ * least the minimum wakeup interval between the start of two blocking queries, so a storm of
+ * index changes does not turn into a storm of requests, and all the calls share a token bucket
+ * that caps the requests per second. Delays are stretched by a random jitter so watches that
+ * woke up together do not call Consul again together.
+ * 
+ * The token bucket belongs to the limits, passing the same limits to several services makes
+ * them share the cap.
+ */
+public class WatchLimits {
+
+  // Watches never call Consul again sooner than this after a query started
+  private static final long MIN_WAKEUP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  
+  static final WatchLimits NONE = new WatchLimits(MIN_WAKEUP_NANOS, 0, 0, 1);
+  
+  private final long minWakeupNanos;
+  
+  private final double jitter;
+  
+  // Token bucket kept as the theoretical time of the next request, 0 means there is no cap
+  private final long requestIntervalNanos;
+  
+  private final long burstNanos;
+  
+  private final AtomicLong nextRequestNanos;
+  
+  private WatchLimits(long minWakeupNanos, double jitter, long requestIntervalNanos, int burst) {
+    this.minWakeupNanos = minWakeupNanos;
+    this.jitter = jitter;
+    this.requestIntervalNanos = requestIntervalNanos;
+    this.burstNanos = requestIntervalNanos * Math.max(burst - 1, 0);
+    // The bucket starts full
+    this.nextRequestNanos = new AtomicLong(System.nanoTime() - burstNanos);
+  }
+  
+  /**
+   * Takes a token from the bucket.
+   * 
+   * @return how many nanoseconds the caller should wait before calling Consul
+   */
+  long reserve() {
+    if (requestIntervalNanos == 0) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    while (true) {
+      long next = nextRequestNanos.get();
+      // An idle bucket fills up to the burst, older unused tokens are lost
+      long start = Math.max(next, now - burstNanos);
+      if (nextRequestNanos.compareAndSet(next, start + requestIntervalNanos)) {
+        return Math.max(start - now, 0);
+      }
+    }
+  }
+  
+  /**
+   * @return the delay before the next blocking query of a watch whose last query started at the given time
+   */
+  long nextWakeupDelay(long lastStartNanos) {
+    long remaining = minWakeupNanos - (System.nanoTime() - lastStartNanos);
+    return withJitter(Math.max(remaining, MIN_WAKEUP_NANOS));
+  }
+  
+  /**
+   * @return the delay stretched by up to the jitter fraction
+   */
+  long withJitter(long delay) {
+    if (jitter == 0) {
+      return delay;
+    }
+    return delay + (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+  }
+  
+  public static final Builder limits() {
+    return new Builder();
+  }
+  
+  public static class Builder {
+    
+    private long minWakeupNanos = MIN_WAKEUP_NANOS;
+    
+    private double jitter = 0;
+    
+    private double requestsPerSecond = 0;
+    
+    private int burst = 1;
+    
+    public Builder minWakeupInterval(long duration, TimeUnit unit) {
+      this.minWakeupNanos = unit.toNanos(duration);
+      return this;
+    }
+    
+    /**
+     * @param jitter the fraction, between 0 and 1, by which wakeup and retry delays are randomly stretched
+     */
+    public Builder jitter(double jitter) {
+      this.jitter = jitter;
+      return this;
+    }
+    
+    /**
+     * @param burst the number of requests that can be made at once after the bucket was idle
+     */
+    public Builder maxRequestsPerSecond(double requestsPerSecond, int burst) {
+      this.requestsPerSecond = requestsPerSecond;
+      this.burst = burst;
+      return this;
+    }
+    
+    public WatchLimits build() {
+      if (minWakeupNanos < MIN_WAKEUP_NANOS) {
+        throw new IllegalArgumentException("Minimum wakeup interval should be at least 10ms");
+      }
+      if (jitter < 0 || jitter > 1) {
+        throw new IllegalArgumentException("Jitter should be between 0 and 1");
+      }
+      if (requestsPerSecond < 0 || burst < 1) {
+        throw new IllegalArgumentException("Requests per second should not be negative and burst should be at least 1");
+      }
+      long requestIntervalNanos = requestsPerSecond == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+      return new WatchLimits(minWakeupNanos, jitter, requestIntervalNanos, burst);
+    }
+  }
+}
@@ -28,6 +28,10 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.totango.discoveryagent.model.Service;
 
+/**
+ * @deprecated use {@link ServiceTypeAdapter} which does not build a JSON tree per entry
+ */
+@Deprecated
 public class ServiceDeserializer implements JsonDeserializer<Service> {
 
   @Override
@@ -0,0 +1,186 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.gson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.totango.discoveryagent.model.Service;
+
+/**
+ * Reads a health entry straight from the stream, keeping only the fields of {@link Service}.
+ * Everything else, like the Checks array, is skipped without being materialized. Catalog
+ * entries, which hold the same fields flat, are read as well.
+ */
+public class ServiceTypeAdapter extends TypeAdapter<Service> {
+
+  @Override
+  public Service read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    
+    String node = null;
+    String nodeAddress = null;
+    String datacenter = null;
+    String serviceId = null;
+    String serviceName = null;
+    String serviceAddress = null;
+    int servicePort = 0;
+    List<String> serviceTags = Collections.emptyList();
+    
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if ("Node".equals(name) && in.peek() != JsonToken.BEGIN_OBJECT) {
+        node = nextString(in);
+      } else if ("Node".equals(name)) {
+        in.beginObject();
+        while (in.hasNext()) {
+          switch (in.nextName()) {
+            case "Node":
+              node = nextString(in);
+              break;
+            case "Address":
+              nodeAddress = nextString(in);
+              break;
+            case "Datacenter":
+              datacenter = nextString(in);
+              break;
+            default:
+              in.skipValue();
+          }
+        }
+        in.endObject();
+      } else if ("Service".equals(name)) {
+        in.beginObject();
+        while (in.hasNext()) {
+          switch (in.nextName()) {
+            case "ID":
+              serviceId = nextString(in);
+              break;
+            case "Service":
+              serviceName = nextString(in);
+              break;
+            case "Address":
+              serviceAddress = nextString(in);
+              break;
+            case "Port":
+              servicePort = in.nextInt();
+              break;
+            case "Tags":
+              serviceTags = nextStringList(in);
+              break;
+            default:
+              in.skipValue();
+          }
+        }
+        in.endObject();
+      } else {
+        switch (name) {
+          case "Address":
+            nodeAddress = nextString(in);
+            break;
+          case "Datacenter":
+            datacenter = nextString(in);
+            break;
+          case "ServiceID":
+            serviceId = nextString(in);
+            break;
+          case "ServiceName":
+            serviceName = nextString(in);
+            break;
+          case "ServiceAddress":
+            serviceAddress = nextString(in);
+            break;
+          case "ServicePort":
+            servicePort = in.nextInt();
+            break;
+          case "ServiceTags":
+            serviceTags = nextStringList(in);
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+    }
+    in.endObject();
+    
+    return new Service(node, nodeAddress, serviceId, serviceName, serviceTags, serviceAddress, servicePort,
+        datacenter);
+  }
+
+  @Override
+  public void write(JsonWriter out, Service service) throws IOException {
+    if (service == null) {
+      out.nullValue();
+      return;
+    }
+    
+    out.beginObject();
+    out.name("Node").beginObject()
+      .name("Node").value(service.getNode())
+      .name("Address").value(service.getNodeAddress());
+    if (service.getDatacenter() != null) {
+      out.name("Datacenter").value(service.getDatacenter());
+    }
+    out.endObject();
+    
+    out.name("Service").beginObject()
+      .name("ID").value(service.getServiceId())
+      .name("Service").value(service.getServiceName());
+    out.name("Tags").beginArray();
+    for (String tag : service.getServiceTags()) {
+      out.value(tag);
+    }
+    out.endArray();
+    out.name("Address").value(service.getServiceAddress())
+      .name("Port").value(service.getServicePort())
+      .endObject();
+    out.endObject();
+  }
+  
+  static String nextString(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return in.nextString();
+  }
+  
+  private static List<String> nextStringList(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return Collections.emptyList();
+    }
+    
+    List<String> list = new ArrayList<>();
+    in.beginArray();
+    while (in.hasNext()) {
+      list.add(in.nextString());
+    }
+    in.endArray();
+    return list;
+  }
+}
@@ -27,6 +27,10 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.totango.discoveryagent.model.Value;
 
+/**
+ * @deprecated use {@link ValueTypeAdapter} which does not build a JSON tree per entry
+ */
+@Deprecated
 public class ValueDeserializer implements JsonDeserializer<Value> {
 
   @Override
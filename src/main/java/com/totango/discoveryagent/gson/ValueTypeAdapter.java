@@ -0,0 +1,109 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.gson;
+
+import static com.totango.discoveryagent.gson.ServiceTypeAdapter.nextString;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.totango.discoveryagent.model.Value;
+
+/**
+ * Reads a key-value entry straight from the stream without building a JSON tree.
+ */
+public class ValueTypeAdapter extends TypeAdapter<Value> {
+
+  @Override
+  public Value read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    
+    String key = null;
+    Optional<byte[]> value = Optional.empty();
+    Optional<String> session = Optional.empty();
+    int createIndex = 0;
+    int modifyIndex = 0;
+    int lockIndex = 0;
+    int flags = 0;
+    
+    in.beginObject();
+    while (in.hasNext()) {
+      switch (in.nextName()) {
+        case "Key":
+          key = nextString(in);
+          break;
+        case "Value":
+          value = Optional.ofNullable(nextString(in))
+            .map(base64 -> base64.getBytes(StandardCharsets.UTF_8));
+          break;
+        case "Session":
+          session = Optional.ofNullable(nextString(in));
+          break;
+        case "CreateIndex":
+          createIndex = in.nextInt();
+          break;
+        case "ModifyIndex":
+          modifyIndex = in.nextInt();
+          break;
+        case "LockIndex":
+          lockIndex = in.nextInt();
+          break;
+        case "Flags":
+          flags = in.nextInt();
+          break;
+        default:
+          in.skipValue();
+      }
+    }
+    in.endObject();
+    
+    return new Value(key, value, createIndex, modifyIndex, lockIndex, flags, session);
+  }
+
+  @Override
+  public void write(JsonWriter out, Value value) throws IOException {
+    if (value == null) {
+      out.nullValue();
+      return;
+    }
+    
+    out.beginObject()
+      .name("CreateIndex").value(value.getCreateIndex())
+      .name("ModifyIndex").value(value.getModifyIndex())
+      .name("LockIndex").value(value.getLockIndex())
+      .name("Key").value(value.getKey())
+      .name("Flags").value(value.getFlags());
+    out.name("Value");
+    if (value.getValue().isPresent()) {
+      out.value(new String(value.getValue().get(), StandardCharsets.UTF_8));
+    } else {
+      out.nullValue();
+    }
+    if (value.getSession().isPresent()) {
+      out.name("Session").value(value.getSession().get());
+    }
+    out.endObject();
+  }
+}
@@ -28,9 +28,15 @@ public class Service {
   private String serviceName;
   private List<String> serviceTags;
   private int servicePort;
+  private String datacenter;
 
   public Service(String node, String nodeAddress, String serviceId, String serviceName,
       List<String> serviceTags, String serviceAddress, int servicePort) {
+    this(node, nodeAddress, serviceId, serviceName, serviceTags, serviceAddress, servicePort, null);
+  }
+  
+  public Service(String node, String nodeAddress, String serviceId, String serviceName,
+      List<String> serviceTags, String serviceAddress, int servicePort, String datacenter) {
     this.node = node;
     this.nodeAddress = nodeAddress;
     this.serviceId = serviceId;
@@ -38,6 +44,7 @@ public class Service {
     this.serviceTags = serviceTags;
     this.serviceAddress = serviceAddress;
     this.servicePort = servicePort;
+    this.datacenter = datacenter;
   }
 
   public String getNode() {
@@ -67,6 +74,18 @@ public class Service {
   public int getServicePort() {
     return servicePort;
   }
+  
+  /**
+   * @return the datacenter of the service or null if it is unknown
+   */
+  public String getDatacenter() {
+    return datacenter;
+  }
+  
+  public Service withDatacenter(String datacenter) {
+    return new Service(node, nodeAddress, serviceId, serviceName, serviceTags, serviceAddress, servicePort,
+        datacenter);
+  }
 
   @Override
   public boolean equals(Object o) {
@@ -84,12 +103,14 @@ public class Service {
         && Objects.equals(serviceName, that.serviceName)
         && Objects.equals(serviceTags, that.serviceTags)
         && Objects.equals(serviceAddress, that.serviceAddress)
-        && Objects.equals(servicePort, that.servicePort);
+        && Objects.equals(servicePort, that.servicePort)
+        && Objects.equals(datacenter, that.datacenter);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(node, nodeAddress, serviceId, serviceName, serviceTags, serviceAddress, servicePort);
+    return Objects.hash(node, nodeAddress, serviceId, serviceName, serviceTags, serviceAddress, servicePort,
+        datacenter);
   }
 
 }
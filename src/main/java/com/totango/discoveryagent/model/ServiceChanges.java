@@ -0,0 +1,73 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.model;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The instances of a service that were added, removed or modified since the last update.
+ * Instances are matched by node and service ID, removed instances hold their last known state.
+ */
+public class ServiceChanges {
+
+  private final List<Service> added;
+  private final List<Service> removed;
+  private final List<Service> modified;
+  
+  public ServiceChanges(List<Service> added, List<Service> removed, List<Service> modified) {
+    this.added = added;
+    this.removed = removed;
+    this.modified = modified;
+  }
+  
+  public List<Service> getAdded() {
+    return added;
+  }
+  
+  public List<Service> getRemoved() {
+    return removed;
+  }
+  
+  public List<Service> getModified() {
+    return modified;
+  }
+  
+  public boolean isEmpty() {
+    return added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    ServiceChanges that = (ServiceChanges) o;
+
+    return Objects.equals(added, that.added)
+        && Objects.equals(removed, that.removed)
+        && Objects.equals(modified, that.modified);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(added, removed, modified);
+  }
+}
@@ -16,17 +16,21 @@
  */
 package com.totango.discoveryagent.model;
 
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Base64.Decoder;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Value {
 
   private static final byte[] EMPTY_VALUE=  new byte[0];
   
+  private static final Decoder DECODER = Base64.getDecoder();
+  
   private final String key;
   
   private final Optional<byte[]> value;
@@ -40,6 +44,16 @@ public class Value {
   private final Optional<String> session;
   
   private final int flags;
+  
+  // Decoded once on first use, racing threads may decode twice but always to the same result
+  private volatile byte[] decodedValue;
+  
+  private volatile String decodedString;
+  
+  private volatile Map<ValueCodec<?>, Object> decodedByCodec;
+  
+  // Stands for a codec that decoded the value to null, which a ConcurrentHashMap cannot hold
+  private static final Object NULL = new Object();
 
   public Value(String key, Optional<byte[]> value, int createIndex, int modifyIndex, int lockIndex,
       int flags, Optional<String> session) {
@@ -56,11 +70,59 @@ public class Value {
     return value;
   }
   
+  /**
+   * @return the Base64 decoded value, the returned array is shared and must not be modified
+   */
+  public Optional<byte[]> getDecodedValue() {
+    if (!value.isPresent()) {
+      return Optional.empty();
+    }
+    byte[] decoded = decodedValue;
+    if (decoded == null) {
+      decoded = DECODER.decode(value.get());
+      decodedValue = decoded;
+    }
+    return Optional.of(decoded);
+  }
+  
   public Optional<String> getValueAsString() {
-    return value.map(val-> {
-      Decoder decoder = Base64.getDecoder();
-      return new String(decoder.decode(val), Charset.forName("UTF-8"));
-    });
+    if (!value.isPresent()) {
+      return Optional.empty();
+    }
+    String decoded = decodedString;
+    if (decoded == null) {
+      decoded = new String(getDecodedValue().get(), StandardCharsets.UTF_8);
+      decodedString = decoded;
+    }
+    return Optional.of(decoded);
+  }
+  
+  /**
+   * Decodes the value with the codec. The result is kept with this value, which is reused by
+   * DiscoveryService as long as the ModifyIndex of the key does not change, so decoding the same
+   * value again with the same codec costs a map lookup. Every caller gets the same object, so it
+   * must not be modified: codecs should return immutable objects, or callers should copy
+   * mutable ones, like the Properties of {@link ValueCodec#properties()}, before changing them.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Optional<T> getValueAs(ValueCodec<T> codec) {
+    if (!value.isPresent()) {
+      return Optional.empty();
+    }
+    Map<ValueCodec<?>, Object> decoded = decodedByCodec;
+    if (decoded == null) {
+      decoded = new ConcurrentHashMap<>(2);
+      decodedByCodec = decoded;
+    }
+    // get() first since computeIfAbsent() locks even when the value is already there
+    Object result = decoded.get(codec);
+    if (result == null) {
+      result = decoded.computeIfAbsent(codec, c -> {
+        T typed = codec.decode(getDecodedValue().get());
+        return typed == null ? NULL : typed;
+      });
+    }
+    return result == NULL ? Optional.empty() : Optional.of((T) result);
   }
 
   public int getCreateIndex() {
@@ -108,6 +170,7 @@ public class Value {
 
   @Override
   public int hashCode() {
-    return Objects.hash(value, createIndex, modifyIndex, lockIndex, key, session, flags);
+    return Objects.hash(Arrays.hashCode(value.orElse(EMPTY_VALUE)), createIndex, modifyIndex, lockIndex, key,
+        session, flags);
   }
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.model;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The keys under a watched prefix that were added, removed or changed since the last update.
+ * A key is changed when its ModifyIndex changed, removed keys hold their last known value.
+ */
+public class ValueChanges {
+
+  private final List<Value> added;
+  private final List<Value> removed;
+  private final List<Value> changed;
+  
+  public ValueChanges(List<Value> added, List<Value> removed, List<Value> changed) {
+    this.added = added;
+    this.removed = removed;
+    this.changed = changed;
+  }
+  
+  public List<Value> getAdded() {
+    return added;
+  }
+  
+  public List<Value> getRemoved() {
+    return removed;
+  }
+  
+  public List<Value> getChanged() {
+    return changed;
+  }
+  
+  public boolean isEmpty() {
+    return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    ValueChanges that = (ValueChanges) o;
+
+    return Objects.equals(added, that.added)
+        && Objects.equals(removed, that.removed)
+        && Objects.equals(changed, that.changed);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(added, removed, changed);
+  }
+}
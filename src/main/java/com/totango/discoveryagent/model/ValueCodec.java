@@ -0,0 +1,64 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.model;
+
+import java.lang.reflect.Type;
+import java.time.Duration;
+import java.util.Properties;
+
+/**
+ * Turns the decoded bytes of a key-value into a typed object, see {@link Value#getValueAs}.
+ * Results are cached by codec so a codec should be created once and reused, the built-in
+ * JSON codecs are equal when they decode the same type. A cached result is shared by every
+ * caller, so it should be immutable or copied before it is modified.
+ */
+@FunctionalInterface
+public interface ValueCodec<T> {
+
+  T decode(byte[] value);
+  
+  static ValueCodec<String> string() {
+    return ValueCodecs.STRING;
+  }
+  
+  static ValueCodec<Integer> integer() {
+    return ValueCodecs.INTEGER;
+  }
+  
+  static ValueCodec<Long> longValue() {
+    return ValueCodecs.LONG;
+  }
+  
+  /**
+   * Parses an ISO-8601 duration like PT30S.
+   */
+  static ValueCodec<Duration> duration() {
+    return ValueCodecs.DURATION;
+  }
+  
+  static ValueCodec<Properties> properties() {
+    return ValueCodecs.PROPERTIES;
+  }
+  
+  static <T> ValueCodec<T> json(Class<T> type) {
+    return new ValueCodecs.JsonCodec<>(type);
+  }
+  
+  static <T> ValueCodec<T> json(Type type) {
+    return new ValueCodecs.JsonCodec<>(type);
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.model;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Properties;
+
+import com.google.gson.Gson;
+
+final class ValueCodecs {
+
+  static final ValueCodec<String> STRING = value -> new String(value, StandardCharsets.UTF_8);
+  
+  static final ValueCodec<Integer> INTEGER = value -> Integer.valueOf(STRING.decode(value).trim());
+  
+  static final ValueCodec<Long> LONG = value -> Long.valueOf(STRING.decode(value).trim());
+  
+  static final ValueCodec<Duration> DURATION = value -> Duration.parse(STRING.decode(value).trim());
+  
+  static final ValueCodec<Properties> PROPERTIES = value -> {
+    Properties properties = new Properties();
+    try {
+      properties.load(new StringReader(STRING.decode(value)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return properties;
+  };
+  
+  private static final Gson GSON = new Gson();
+  
+  private ValueCodecs() {
+  }
+  
+  static final class JsonCodec<T> implements ValueCodec<T> {
+    
+    private final Type type;
+    
+    JsonCodec(Type type) {
+      this.type = type;
+    }
+    
+    @Override
+    public T decode(byte[] value) {
+      return GSON.fromJson(STRING.decode(value), type);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof JsonCodec && type.equals(((JsonCodec<?>) o).type);
+    }
+    
+    @Override
+    public int hashCode() {
+      return type.hashCode();
+    }
+  }
+}
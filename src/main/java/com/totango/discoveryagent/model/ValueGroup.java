@@ -0,0 +1,59 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent.model;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+public class ValueGroup {
+
+  private final List<Value> values;
+  private final Optional<String> index;
+  
+  public ValueGroup(List<Value> values, Optional<String> index) {
+    this.values = values;
+    this.index = index;
+  }
+
+  public List<Value> getValues() {
+    return values;
+  }
+  
+  public Optional<String> getIndex() {
+    return index;
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    ValueGroup that = (ValueGroup) o;
+
+    return Objects.equals(values, that.values)
+        && Objects.equals(index, that.index);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(values, index);
+  }
+}
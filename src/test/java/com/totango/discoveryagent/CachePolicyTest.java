@@ -0,0 +1,57 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CachePolicyTest {
+
+  @Test
+  public void agesShouldMoveThroughFreshRevalidateAndStale() {
+    CachePolicy policy = CachePolicy.policy()
+        .ttl(1, TimeUnit.SECONDS)
+        .staleWhileRevalidate(1, TimeUnit.SECONDS)
+        .maxStaleness(5, TimeUnit.SECONDS)
+        .build();
+    
+    assertTrue(policy.isFresh(TimeUnit.MILLISECONDS.toNanos(999)));
+    assertFalse(policy.isFresh(TimeUnit.SECONDS.toNanos(1)));
+    assertTrue(policy.canRevalidateInBackground(TimeUnit.MILLISECONDS.toNanos(1999)));
+    assertFalse(policy.canRevalidateInBackground(TimeUnit.SECONDS.toNanos(2)));
+    assertTrue(policy.canServeStale(TimeUnit.MILLISECONDS.toNanos(4999)));
+    assertFalse(policy.canServeStale(TimeUnit.SECONDS.toNanos(5)));
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void ttlShouldBePositive() {
+    CachePolicy.policy().ttl(0, TimeUnit.SECONDS).build();
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void maxStalenessShouldCoverTheRevalidateTime() {
+    CachePolicy.policy()
+        .ttl(1, TimeUnit.MINUTES)
+        .staleWhileRevalidate(1, TimeUnit.MINUTES)
+        .maxStaleness(90, TimeUnit.SECONDS)
+        .build();
+  }
+}
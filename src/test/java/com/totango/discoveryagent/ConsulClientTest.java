@@ -19,15 +19,31 @@ package com.totango.discoveryagent;
 import static com.totango.discoveryagent.ResourceLoader.load;
 import static com.totango.discoveryagent.ServiceRequest.request;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 
@@ -35,9 +51,11 @@ import org.junit.Test;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.google.gson.Gson;
 import com.totango.discoveryagent.model.Service;
 import com.totango.discoveryagent.model.ServiceGroup;
 import com.totango.discoveryagent.model.Value;
+import com.totango.discoveryagent.model.ValueGroup;
 
 public class ConsulClientTest {
 
@@ -182,6 +200,92 @@ public class ConsulClientTest {
     });
   }
 
+  @Test
+  public void discoverServiceInDatacenterShouldUseTheProvidedDatacenter() throws Exception {
+    withMockedResponse(new MockResponse().setBody(SERVICE_HEALTH_2_NODES_JSON),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      ServiceRequest requestWithDatacenter = request().forService("whatever").inDatacenter("dc2").build();
+
+      Optional<ServiceGroup> response = consulClient.discoverService(requestWithDatacenter);
+
+      final Map<String, String> keyValueMap = pathKeyValue(server.takeRequest().getPath());
+      assertEquals("Datacenter doesn't match", "dc2", keyValueMap.get("dc"));
+      assertEquals("Services should be tagged with the datacenter",
+          Arrays.asList(SERVICE1.withDatacenter("dc2"), SERVICE2.withDatacenter("dc2")),
+          response.get().getServices());
+    });
+  }
+
+  @Test
+  public void discoverServiceShouldSendTagsNodeMetaAndFilterToConsul() throws Exception {
+    withMockedResponse(new MockResponse().setBody(SERVICE_HEALTH_2_NODES_JSON),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      ServiceRequest request = request().forService("pong")
+          .withTags("primary", "jvm")
+          .withNodeMeta("rack", "r1")
+          .withFilter("Service.Meta.version == 2")
+          .build();
+      consulClient.discoverService(request);
+
+      String path = server.takeRequest().getPath();
+      assertEquals("/v1/health/service/pong?index=0&wait=1s&tag=jvm&tag=primary&node-meta=rack%3Ar1"
+          + "&filter=Service.Meta.version+%3D%3D+2&passing", path);
+    });
+  }
+  
+  @Test
+  public void datacenterShouldBeEncoded() throws Exception {
+    withMockedResponse(new MockResponse().setBody(SERVICE_HEALTH_2_NODES_JSON),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      consulClient.discoverService(request().forService("pong").inDatacenter("dc2&tag=x").build());
+
+      assertEquals("/v1/health/service/pong?index=0&wait=1s&dc=dc2%26tag%3Dx&passing",
+          server.takeRequest().getPath());
+    });
+  }
+  
+  @Test
+  public void discoverServiceFromCatalogShouldUseTheCatalogEndpoint() throws Exception {
+    String catalogJson = "[{\"Node\":\"n1\",\"Address\":\"10.0.0.1\",\"ServiceID\":\"pong-1\","
+        + "\"ServiceName\":\"pong\",\"ServiceTags\":[],\"ServiceAddress\":\"\",\"ServicePort\":80}]";
+    withMockedResponse(new MockResponse().setBody(catalogJson).setHeader("X-Consul-Index", "7"),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      ServiceRequest request = request().forService("pong").inDatacenter("dc2").fromCatalog().build();
+      Optional<ServiceGroup> response = consulClient.discoverService(request);
+
+      assertEquals("/v1/catalog/service/pong?index=0&wait=1s&dc=dc2", server.takeRequest().getPath());
+      Service expected = new Service("n1", "10.0.0.1", "pong-1", "pong", Collections.emptyList(), "", 80, "dc2");
+      assertEquals(new ServiceGroup(Arrays.asList(expected), Optional.of("7")), response.get());
+    });
+  }
+  
+  @Test
+  public void waitJitterShouldShortenTheWait() throws Exception {
+    MockWebServer server = new MockWebServer();
+    for (int i = 0; i < 20; i++) {
+      server.enqueue(new MockResponse().setResponseCode(200));
+    }
+    server.start();
+    ConsulClient consulClient = new ConsulClientFactory()
+        .host(server.getHostName())
+        .port(server.getPort())
+        .waitTimeInSec(100)
+        .waitJitter(0.5)
+        .client();
+    
+    for (int i = 0; i < 20; i++) {
+      consulClient.discoverService(serviceRequest);
+      String wait = pathKeyValue(server.takeRequest().getPath()).get("wait");
+      int waitTimeInSec = Integer.parseInt(wait.substring(0, wait.length() - 1));
+      assertTrue("Wait should be between 50s and 100s, was " + wait, waitTimeInSec > 50 && waitTimeInSec <= 100);
+    }
+    server.shutdown();
+  }
+
   @Test
   public void discoverServiceShouldReturnNoneForBadResponseCode() throws Exception {
     withMockedResponse(new MockResponse().setResponseCode(500),
@@ -269,6 +373,155 @@ public class ConsulClientTest {
     });
   }
 
+  @Test
+  public void unchangedBodyShouldNotBeParsedAgain() throws Exception {
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setBody(SERVICE_HEALTH_2_NODES_JSON).setHeader("X-Consul-Index", "1"));
+    server.enqueue(new MockResponse().setBody(SERVICE_HEALTH_2_NODES_JSON).setHeader("X-Consul-Index", "2"));
+    server.enqueue(new MockResponse().setBody(load("v1_health_service_pong-1-services.json"))
+        .setHeader("X-Consul-Index", "3"));
+    server.start();
+    ConsulClient consulClient = consulClient(server, 1);
+    
+    ServiceGroup first = consulClient.discoverService(serviceRequest).get();
+    ServiceGroup second = consulClient.discoverService(serviceRequest).get();
+    ServiceGroup third = consulClient.discoverService(serviceRequest).get();
+    server.shutdown();
+    
+    assertSame(first.getServices(), second.getServices());
+    assertEquals(Optional.of("2"), second.getIndex());
+    assertEquals(Arrays.asList(SERVICE1), third.getServices());
+  }
+  
+  @Test
+  public void bodyWithOnlyANewCheckOutputShouldKeepTheLastServices() throws Exception {
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().setBody(SERVICE_HEALTH_2_NODES_JSON).setHeader("X-Consul-Index", "1"));
+    server.enqueue(new MockResponse().setBody(SERVICE_HEALTH_2_NODES_JSON.replace("Output: GOOD", "Output: FINE"))
+        .setHeader("X-Consul-Index", "2"));
+    server.start();
+    ConsulClient consulClient = consulClient(server, 1);
+    
+    ServiceGroup first = consulClient.discoverService(serviceRequest).get();
+    ServiceGroup second = consulClient.discoverService(serviceRequest).get();
+    server.shutdown();
+    
+    assertSame(first.getServices(), second.getServices());
+    assertEquals(Optional.of("2"), second.getIndex());
+  }
+  
+  @Test
+  public void keyValueGroupShouldReturnTheIndexOfAMissingKey() throws Exception {
+    withMockedResponse(new MockResponse().setResponseCode(404).setHeader("X-Consul-Index", "200"),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      Optional<ValueGroup> response = consulClient.keyValueGroup("zip", "100");
+
+      final Map<String, String> keyValueMap = pathKeyValue(server.takeRequest().getPath());
+      assertEquals("Index doesn't match", "100", keyValueMap.get("index"));
+      assertEquals(new ValueGroup(Collections.emptyList(), Optional.of("200")), response.get());
+    });
+  }
+  
+  @Test
+  public void keyValuesShouldRecurseUnderThePrefix() throws Exception {
+    withMockedResponse(new MockResponse().setBody(KEY_VALUE_JSON).setHeader("X-Consul-Index", "200"),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      Optional<ValueGroup> response = consulClient.keyValues("zip", "100");
+
+      String path = server.takeRequest().getPath();
+      assertEquals("/v1/kv/zip?recurse&index=100&wait=1s", path);
+      assertEquals(new ValueGroup(Arrays.asList(ZIP_VALUE), Optional.of("200")), response.get());
+    });
+  }
+  
+  @Test
+  public void keyValuesShouldReturnAnEmptyGroupForAnEmptyPrefix() throws Exception {
+    withMockedResponse(new MockResponse().setResponseCode(404).setHeader("X-Consul-Index", "200"),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      Optional<ValueGroup> response = consulClient.keyValues("zip", "100");
+      assertEquals(new ValueGroup(Collections.emptyList(), Optional.of("200")), response.get());
+    });
+  }
+  
+  @Test
+  public void callsShouldBeReportedToTheMetrics() throws Exception {
+    withMockedResponse(new MockResponse().setBody(KEY_VALUE_JSON),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      InMemoryMetrics metrics = new InMemoryMetrics();
+      consulClient.enableMetrics(metrics);
+      consulClient.keyValue("zip");
+      
+      assertEquals(1, metrics.httpLatency("kv").count());
+      assertEquals(0, metrics.httpErrors("kv"));
+      assertEquals(1, metrics.parseTime("kv").count());
+      assertEquals(KEY_VALUE_JSON.getBytes(Charset.forName("UTF-8")).length, metrics.parsedBytes("kv"));
+    });
+  }
+  
+  @Test
+  public void discoverServiceAsyncShouldCompleteWithTheServiceGroup() throws Exception {
+    withMockedResponse(new MockResponse().setBody(SERVICE_HEALTH_2_NODES_JSON).setHeader("X-Consul-Index", "3"),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      Optional<ServiceGroup> response = consulClient.discoverServiceAsync(serviceRequest).get(5, TimeUnit.SECONDS);
+      assertEquals(new ServiceGroup(Arrays.asList(SERVICE1, SERVICE2), Optional.of("3")), response.get());
+    });
+  }
+  
+  @Test
+  public void keyValueAsyncShouldCompleteWithTheValue() throws Exception {
+    withMockedResponse(new MockResponse().setBody(KEY_VALUE_JSON),
+        (ConsulClient consulClient, MockWebServer server) -> {
+
+      Optional<Value> value = consulClient.keyValueAsync("zip").get(5, TimeUnit.SECONDS);
+      assertEquals(ZIP_VALUE, value.get());
+    });
+  }
+  
+  @Test(expected=ExecutionException.class)
+  public void asyncCallShouldFailWhenConsulIsUnreachable() throws Exception {
+    MockWebServer server = new MockWebServer();
+    server.start();
+    ConsulClient consulClient = consulClient(server, 1);
+    server.shutdown();
+    
+    consulClient.datacentersAsync().get(5, TimeUnit.SECONDS);
+  }
+  
+  @Test
+  public void cancellingAsyncCallShouldCancelTheHttpCall() throws Exception {
+    
+    Call call = mock(Call.class);
+    OkHttpClient okClient = mock(OkHttpClient.class);
+    when(okClient.newCall(any(Request.class))).thenReturn(call);
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequestsPerHost(256);
+    when(okClient.dispatcher()).thenReturn(dispatcher);
+    ConsulClient consulClient = new ConsulClient(okClient, new Gson(), "localhost", 8500, 1);
+    
+    CompletableFuture<Optional<ServiceGroup>> future = consulClient.discoverServiceAsync(serviceRequest);
+    future.cancel(true);
+    
+    verify(call).enqueue(any(Callback.class));
+    verify(call).cancel();
+  }
+
+  @Test
+  public void dispatcherConfiguredByTheCallerShouldBeKept() throws Exception {
+    
+    OkHttpClient okClient = mock(OkHttpClient.class);
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequestsPerHost(10);
+    when(okClient.dispatcher()).thenReturn(dispatcher);
+    new ConsulClient(okClient, new Gson(), "localhost", 8500, 1);
+    
+    verify(okClient, never()).newBuilder();
+  }
+  
   private void withMockedResponse(MockResponse res, int waitTimeInSec,
       ThrowableBiConsumer<ConsulClient, MockWebServer> func) throws Exception {
     
@@ -20,30 +20,64 @@ import static com.jayway.awaitility.Awaitility.await;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import rx.Subscription;
 
 import com.jayway.awaitility.Duration;
 import com.totango.discoveryagent.model.Service;
+import com.totango.discoveryagent.model.ServiceChanges;
 import com.totango.discoveryagent.model.ServiceGroup;
+import com.totango.discoveryagent.model.Value;
+import com.totango.discoveryagent.model.ValueChanges;
+import com.totango.discoveryagent.model.ValueGroup;
 
 public class DiscoveryServiceTest {
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final ExecutorService CONSUL_CALLS = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "consul-call");
+    thread.setDaemon(true);
+    return thread;
+  });
+  
   private static final Service SERVICE1 = new Service("pong-service-1", "192.168.25.111", 
       "pong", "pong", Arrays.asList("jvm"), "192.168.25.111", 9877);
   
@@ -53,7 +87,7 @@ public class DiscoveryServiceTest {
   @Test
   public void getServiceShouldReturnEmptyServiceListForUnknownService() throws Exception {
     
-    ConsulClient consulClient = mock(ConsulClient.class);
+    ConsulClient consulClient = mockConsulClient();
     when(consulClient.discoverService(any(ServiceRequest.class))).thenReturn(Optional.empty());
     
     DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
@@ -67,7 +101,7 @@ public class DiscoveryServiceTest {
     List<Service> expected = Arrays.asList(SERVICE1, SERVICE2);
     ServiceGroup serviceGroup = new ServiceGroup(expected, Optional.empty());
     
-    ConsulClient consulClient = mock(ConsulClient.class);
+    ConsulClient consulClient = mockConsulClient();
     when(consulClient.discoverService(any(ServiceRequest.class))).thenReturn(Optional.of(serviceGroup));
     
     DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
@@ -84,7 +118,7 @@ public class DiscoveryServiceTest {
     ServiceGroup twoServiceGroup = new ServiceGroup(twoServices, Optional.empty());
     ServiceGroup singleServiceGroup = new ServiceGroup(singleService, Optional.empty());
     
-    ConsulClient consulClient = mock(ConsulClient.class);
+    ConsulClient consulClient = mockConsulClient();
     when(consulClient.discoverService(any(ServiceRequest.class)))
       .thenReturn(Optional.of(twoServiceGroup));
     
@@ -127,7 +161,7 @@ public class DiscoveryServiceTest {
     List<Service> singleService = Arrays.asList(SERVICE1);
     ServiceGroup singleServiceGroup = new ServiceGroup(singleService, Optional.empty());
     
-    ConsulClient consulClient = mock(ConsulClient.class);
+    ConsulClient consulClient = mockConsulClient();
     when(consulClient.discoverService(any(ServiceRequest.class)))
       .thenThrow(UnknownHostException.class)
       .thenThrow(UnknownHostException.class)
@@ -154,4 +188,879 @@ public class DiscoveryServiceTest {
     
     subscribe.unsubscribe();
   }
+  
+  @Test(timeout = 1000)
+  public void subscribersOfTheSameServiceShouldShareOneWatch() throws Exception {
+    
+    Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    AtomicInteger maxInFlight = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      ServiceRequest request = invocation.getArgumentAt(0, ServiceRequest.class);
+      AtomicInteger calls = inFlight.computeIfAbsent(request.serviceName(), name -> new AtomicInteger());
+      maxInFlight.accumulateAndGet(calls.incrementAndGet(), Math::max);
+      // A blocking query that waits for a change
+      Thread.sleep("0".equals(request.index()) ? 100 : 10_000);
+      calls.decrementAndGet();
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+    });
+    
+    // More watches than watch threads, waiting watches must not hold the threads
+    ExecutorService watchExecutor = Executors.newFixedThreadPool(2);
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i,
+        TimeUnit.MILLISECONDS, watchExecutor);
+    
+    AtomicInteger updates = new AtomicInteger(0);
+    List<Subscription> subscriptions = new ArrayList<>();
+    for (int service = 0; service < 10; service++) {
+      for (int i = 0; i < 5; i++) {
+        subscriptions.add(discoveryService.subscribe("pong" + service, update -> updates.incrementAndGet()));
+      }
+    }
+
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(400, MILLISECONDS)
+      .untilAtomic(updates, equalTo(50));
+    
+    subscriptions.forEach(Subscription::unsubscribe);
+    watchExecutor.shutdownNow();
+    assertEquals(10, inFlight.size());
+    assertEquals(1, maxInFlight.get());
+  }
+  
+  @Test(timeout = 1000)
+  public void lateSubscriberShouldGetTheLastUpdateReplayed() throws Exception {
+    
+    List<Service> twoServices = Arrays.asList(SERVICE1, SERVICE2);
+    ServiceGroup serviceGroup = new ServiceGroup(twoServices, Optional.of("1"));
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenReturn(Optional.of(serviceGroup));
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    
+    AtomicInteger firstUpdates = new AtomicInteger(0);
+    Subscription first = discoveryService.subscribe("pong", update -> firstUpdates.incrementAndGet());
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(100, MILLISECONDS)
+      .untilAtomic(firstUpdates, equalTo(1));
+    
+    final List<Service> services = new ArrayList<>();
+    Subscription late = discoveryService.subscribe("pong", update -> {
+      synchronized (services) {
+        services.addAll(update);
+      }
+    });
+    
+    synchronized (services) {
+      assertEquals(twoServices, services);
+    }
+    
+    first.unsubscribe();
+    late.unsubscribe();
+  }
+  
+  @Test(timeout = 1000)
+  public void lastUnsubscribeShouldStopTheWatch() throws Exception {
+    
+    ServiceGroup serviceGroup = new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1"));
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      calls.incrementAndGet();
+      return Optional.of(serviceGroup);
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    
+    Subscription first = discoveryService.subscribe("pong", update -> {});
+    Subscription second = discoveryService.subscribe("pong", update -> {});
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(200, MILLISECONDS)
+      .until(() -> calls.get() > 2);
+    
+    first.unsubscribe();
+    second.unsubscribe();
+    
+    Thread.sleep(30);
+    int callsAfterUnsubscribe = calls.get();
+    Thread.sleep(50);
+    assertEquals(callsAfterUnsubscribe, calls.get());
+  }
+  
+  @Test(timeout = 1000)
+  public void subscribeToSeveralDatacentersShouldMergeTheirServices() throws Exception {
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      ServiceRequest request = (ServiceRequest) invocation.getArguments()[0];
+      Service service = "dc1".equals(request.datacenter()) ? SERVICE1 : SERVICE2;
+      return Optional.of(new ServiceGroup(Arrays.asList(service.withDatacenter(request.datacenter())),
+          Optional.of("1")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    
+    final List<Service> merged = new ArrayList<>();
+    Subscription subscription = discoveryService.subscribe("pong", Arrays.asList("dc1", "dc2"), update -> {
+      synchronized (merged) {
+        merged.clear();
+        merged.addAll(update);
+      }
+    }, throwable -> {});
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(200, MILLISECONDS)
+      .until(() -> {
+        synchronized (merged) {
+          return merged.size() == 2;
+        }
+      });
+    
+    synchronized (merged) {
+      assertTrue(merged.contains(SERVICE1.withDatacenter("dc1")));
+      assertTrue(merged.contains(SERVICE2.withDatacenter("dc2")));
+    }
+    subscription.unsubscribe();
+  }
+  
+  @Test(timeout = 3000)
+  public void snapshotShouldServeTheLastServicesWhenConsulIsDown() throws Exception {
+    
+    Path snapshot = temporaryFolder.getRoot().toPath().resolve("discovery.json");
+    ServiceGroup serviceGroup = new ServiceGroup(Arrays.asList(SERVICE1, SERVICE2), Optional.of("7"));
+    Value value = new Value("zip", Optional.of("dGVzdA==".getBytes(StandardCharsets.UTF_8)), 1, 2, 0, 0,
+        Optional.empty());
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenReturn(Optional.of(serviceGroup));
+    when(consulClient.keyValue("zip")).thenReturn(Optional.of(value));
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableSnapshot(snapshot);
+    discoveryService.getServices("pong");
+    discoveryService.getValue("zip");
+    
+    await().atMost(2, TimeUnit.SECONDS).until(() -> Files.exists(snapshot));
+    
+    ConsulClient downConsulClient = mockConsulClient();
+    when(downConsulClient.discoverService(any(ServiceRequest.class))).thenThrow(new UnknownHostException());
+    when(downConsulClient.keyValue("zip")).thenThrow(new UnknownHostException());
+    
+    DiscoveryService restarted = new DiscoveryService(downConsulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    restarted.enableSnapshot(snapshot);
+    
+    assertEquals(Arrays.asList(SERVICE1, SERVICE2), restarted.getServices("pong"));
+    assertTrue(restarted.isStale("pong"));
+    assertEquals(Optional.of(value), restarted.getValue("zip"));
+  }
+  
+  @Test(timeout = 3000)
+  public void unchangedIndexShouldConfirmTheSnapshot() throws Exception {
+    
+    Path snapshot = temporaryFolder.getRoot().toPath().resolve("discovery.json");
+    ServiceGroup serviceGroup = new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("7"));
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenReturn(Optional.of(serviceGroup));
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableSnapshot(snapshot);
+    discoveryService.getServices("pong");
+    await().atMost(2, TimeUnit.SECONDS).until(() -> Files.exists(snapshot));
+    
+    DiscoveryService restarted = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    restarted.enableSnapshot(snapshot);
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(500, MILLISECONDS)
+      .until(() -> !restarted.isStale("pong"));
+    assertEquals(Arrays.asList(SERVICE1), restarted.getServices("pong"));
+  }
+  
+  @Test(timeout = 3000)
+  public void snapshotShouldBeRevalidatedOnceConsulIsBackUp() throws Exception {
+    
+    Path snapshot = temporaryFolder.getRoot().toPath().resolve("discovery.json");
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class)))
+      .thenReturn(Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("7"))));
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableSnapshot(snapshot);
+    discoveryService.getServices("pong");
+    await().atMost(2, TimeUnit.SECONDS).until(() -> Files.exists(snapshot));
+    
+    AtomicBoolean up = new AtomicBoolean();
+    ConsulClient restartedConsulClient = mockConsulClient();
+    when(restartedConsulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      if (!up.get()) {
+        throw new UnknownHostException();
+      }
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1, SERVICE2), Optional.of("8")));
+    });
+    
+    DiscoveryService restarted = new DiscoveryService(restartedConsulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    restarted.enableCachePolicy(CachePolicy.policy()
+        .ttl(100, MILLISECONDS)
+        .staleWhileRevalidate(0, MILLISECONDS)
+        .maxStaleness(150, MILLISECONDS)
+        .build());
+    restarted.enableSnapshot(snapshot);
+    
+    assertEquals(Arrays.asList(SERVICE1), restarted.getServices("pong"));
+    Thread.sleep(200);
+    try {
+      restarted.getServices("pong");
+      fail("The snapshot should not be served past its max staleness");
+    } catch (UnknownHostException e) {
+      // expected
+    }
+    
+    up.set(true);
+    await().pollInterval(new Duration(10, MILLISECONDS))
+      .atMost(2, TimeUnit.SECONDS)
+      .until(() -> !restarted.isStale("pong"));
+    assertEquals(Arrays.asList(SERVICE1, SERVICE2), restarted.getServices("pong"));
+  }
+  
+  @Test(timeout = 1000)
+  public void getServicesOfManyShouldRunConcurrentlyAndReportFailuresPerService() throws Exception {
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      ServiceRequest request = (ServiceRequest) invocation.getArguments()[0];
+      Thread.sleep(100);
+      if ("broken".equals(request.serviceName())) {
+        throw new UnknownHostException();
+      }
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    
+    long started = System.nanoTime();
+    Map<String, DiscoveryResult> results = discoveryService.getServices(Arrays.asList("pong", "ping", "broken"));
+    long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    
+    assertTrue("Lookups should not run one after the other, took " + tookMillis, tookMillis < 250);
+    assertEquals(Optional.of(Arrays.asList(SERVICE1)), results.get("pong").getServices());
+    assertEquals(Optional.of(Arrays.asList(SERVICE1)), results.get("ping").getServices());
+    assertFalse(results.get("broken").isSuccess());
+    assertTrue(results.get("broken").getFailure().get() instanceof UnknownHostException);
+  }
+  
+  @Test(timeout = 1000)
+  public void subscribePrefixShouldOnlyEmitTheChangedKeys() throws Exception {
+    
+    Value a1 = value("flags/a", 1);
+    Value b1 = value("flags/b", 2);
+    Value a2 = value("flags/a", 3);
+    Value c1 = value("flags/c", 3);
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.keyValues("flags", "0"))
+      .thenReturn(Optional.of(new ValueGroup(Arrays.asList(a1, b1), Optional.of("2"))));
+    when(consulClient.keyValues("flags", "2"))
+      .thenReturn(Optional.of(new ValueGroup(Arrays.asList(a2, c1), Optional.of("3"))));
+    when(consulClient.keyValues("flags", "3")).thenAnswer(invocation -> {
+      Thread.sleep(10);
+      return Optional.of(new ValueGroup(Arrays.asList(a2, c1), Optional.of("3")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    
+    List<ValueChanges> updates = new CopyOnWriteArrayList<>();
+    Subscription subscription = discoveryService.subscribePrefix("flags", updates::add, throwable -> {});
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(200, MILLISECONDS)
+      .until(() -> updates.size() == 2);
+    
+    assertEquals(new ValueChanges(Arrays.asList(a1, b1), Collections.emptyList(), Collections.emptyList()),
+        updates.get(0));
+    assertEquals(new ValueChanges(Arrays.asList(c1), Arrays.asList(b1), Arrays.asList(a2)), updates.get(1));
+    
+    List<ValueChanges> lateUpdates = new CopyOnWriteArrayList<>();
+    Subscription late = discoveryService.subscribePrefix("flags", lateUpdates::add, throwable -> {});
+    
+    assertEquals(1, lateUpdates.size());
+    assertEquals(2, lateUpdates.get(0).getAdded().size());
+    
+    subscription.unsubscribe();
+    late.unsubscribe();
+  }
+  
+  @Test(timeout = 1000)
+  public void subscribeKeyShouldOnlyEmitWhenTheModifyIndexChanges() throws Exception {
+    
+    Value v1 = value("config/timeout", 5);
+    Value v2 = value("config/timeout", 9);
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.keyValueGroup(any(String.class), any(String.class))).thenAnswer(invocation -> {
+      int call = calls.incrementAndGet();
+      if (call < 3) {
+        // Another key changed, the index moves but the key did not
+        return Optional.of(new ValueGroup(Arrays.asList(v1), Optional.of(String.valueOf(5 + call))));
+      }
+      Thread.sleep(10);
+      return Optional.of(new ValueGroup(Arrays.asList(v2), Optional.of("9")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    
+    List<Optional<Value>> first = new CopyOnWriteArrayList<>();
+    List<Optional<Value>> second = new CopyOnWriteArrayList<>();
+    Subscription firstSubscription = discoveryService.subscribeKey("config/timeout", first::add, throwable -> {});
+    Subscription secondSubscription = discoveryService.subscribeKey("config/timeout", second::add, throwable -> {});
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(200, MILLISECONDS)
+      .until(() -> first.size() == 2 && second.size() == 2);
+    
+    Thread.sleep(50);
+    assertEquals(Arrays.asList(Optional.of(v1), Optional.of(v2)), first);
+    assertEquals(Arrays.asList(Optional.of(v1), Optional.of(v2)), second);
+    
+    firstSubscription.unsubscribe();
+    secondSubscription.unsubscribe();
+  }
+  
+  @Test(timeout = 1000)
+  public void subscribeChangesShouldEmitInstanceChangesAndSkipIndexBumps() throws Exception {
+    
+    Service movedService2 = new Service("pong-service-2", "192.168.25.112", "pong", "pong",
+        Arrays.asList("jvm"), "192.168.25.112", 9878);
+    Service service3 = new Service("pong-service-3", "192.168.25.113", "pong", "pong",
+        Arrays.asList("jvm"), "192.168.25.113", 9877);
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      int call = calls.incrementAndGet();
+      if (call == 1) {
+        return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1, SERVICE2), Optional.of("1")));
+      }
+      if (call < 4) {
+        return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1, SERVICE2), Optional.of(String.valueOf(call))));
+      }
+      Thread.sleep(10);
+      return Optional.of(new ServiceGroup(Arrays.asList(movedService2, service3), Optional.of("4")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    
+    List<ServiceChanges> updates = new CopyOnWriteArrayList<>();
+    Subscription subscription = discoveryService.subscribeChanges("pong", updates::add, throwable -> {});
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(200, MILLISECONDS)
+      .until(() -> updates.size() == 2);
+    Thread.sleep(30);
+    
+    assertEquals(2, updates.size());
+    assertEquals(new ServiceChanges(Arrays.asList(SERVICE1, SERVICE2), Collections.emptyList(),
+        Collections.emptyList()), updates.get(0));
+    assertEquals(new ServiceChanges(Arrays.asList(service3), Arrays.asList(SERVICE1),
+        Arrays.asList(movedService2)), updates.get(1));
+    
+    subscription.unsubscribe();
+  }
+  
+  @Test(timeout = 1000)
+  public void minWakeupIntervalShouldLimitHowOftenAWatchCallsConsul() throws Exception {
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      // Every query wakes up right away with a new index, like during an index storm
+      int call = calls.incrementAndGet();
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of(String.valueOf(call))));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableWatchLimits(WatchLimits.limits().minWakeupInterval(100, MILLISECONDS).build());
+    
+    Subscription subscription = discoveryService.subscribe("pong", update -> {});
+    Thread.sleep(350);
+    subscription.unsubscribe();
+    
+    assertTrue("Expected at most 4 calls, was " + calls.get(), calls.get() <= 4);
+  }
+  
+  @Test(timeout = 1000)
+  public void errorAnswerShouldBeRetriedWithBackoff() throws Exception {
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      // Consul answers at once with an error status, like while the agent has no leader
+      calls.incrementAndGet();
+      return Optional.empty();
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 3, i -> 100, TimeUnit.MILLISECONDS);
+    
+    Subscription subscription = discoveryService.subscribe("pong", update -> {}, throwable -> {});
+    Thread.sleep(350);
+    subscription.unsubscribe();
+    
+    assertTrue("Expected at most 5 calls, was " + calls.get(), calls.get() <= 5);
+  }
+  
+  @Test(timeout = 1000)
+  public void missingKeyShouldBeWatchedWithItsIndex() throws Exception {
+    
+    List<String> indexes = new CopyOnWriteArrayList<>();
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.keyValueGroup(any(String.class), any(String.class))).thenAnswer(invocation -> {
+      String index = invocation.getArgumentAt(1, String.class);
+      indexes.add(index);
+      if (!"0".equals(index)) {
+        Thread.sleep(10_000);
+      }
+      return Optional.of(new ValueGroup(Collections.emptyList(), Optional.of("7")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    
+    List<Optional<Value>> updates = new CopyOnWriteArrayList<>();
+    Subscription subscription = discoveryService.subscribeKey("config/missing", updates::add, throwable -> {});
+    Thread.sleep(100);
+    subscription.unsubscribe();
+    
+    assertEquals(Arrays.asList(Optional.empty()), updates);
+    assertEquals(Arrays.asList("0", "7"), indexes);
+  }
+  
+  @Test(timeout = 2000)
+  public void indexGoingBackwardsShouldRestartTheWatchFromZeroWithBackoff() throws Exception {
+    
+    List<String> requested = new CopyOnWriteArrayList<>();
+    List<Long> requestTimes = new CopyOnWriteArrayList<>();
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.keyValueGroup(any(String.class), any(String.class))).thenAnswer(invocation -> {
+      requested.add((String) invocation.getArguments()[1]);
+      requestTimes.add(System.nanoTime());
+      int call = requested.size();
+      if (call == 1) {
+        return Optional.of(new ValueGroup(Arrays.asList(value("config/timeout", 90)), Optional.of("100")));
+      }
+      if (call == 2) {
+        // The Consul servers lost their state and count again from a low index
+        return Optional.of(new ValueGroup(Arrays.asList(value("config/timeout", 2)), Optional.of("3")));
+      }
+      Thread.sleep(10);
+      return Optional.of(new ValueGroup(Arrays.asList(value("config/timeout", 2)), Optional.of("4")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    Subscription subscription = discoveryService.subscribeKey("config/timeout", update -> {}, throwable -> {});
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(1500, MILLISECONDS)
+      .until(() -> requested.size() >= 4);
+    subscription.unsubscribe();
+    
+    assertEquals(Arrays.asList("0", "100", "0", "4"), requested.subList(0, 4));
+    assertEquals(1, discoveryService.getIndexResets());
+    long backoffMillis = TimeUnit.NANOSECONDS.toMillis(requestTimes.get(2) - requestTimes.get(1));
+    assertTrue("Expected a backoff after the reset, was " + backoffMillis + "ms", backoffMillis >= 400);
+  }
+  
+  @Test(timeout = 1000)
+  public void watchesShouldReportTheirWakeupsRetriesAndSubscribers() throws Exception {
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      int call = calls.incrementAndGet();
+      if (call == 2) {
+        throw new IOException("Connection reset");
+      }
+      if (call > 3) {
+        Thread.sleep(10);
+      }
+      // The index moves on every call but the services never change after the first one
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of(String.valueOf(call))));
+    });
+    
+    InMemoryMetrics metrics = new InMemoryMetrics();
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableMetrics(metrics);
+    
+    Subscription first = discoveryService.subscribe("pong", update -> {});
+    Subscription second = discoveryService.subscribe("pong", update -> {});
+    assertEquals(2, metrics.subscribers(DiscoveryMetrics.SERVICE, "pong"));
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(200, MILLISECONDS)
+      .until(() -> metrics.wakeups(DiscoveryMetrics.SERVICE, "pong") >= 3);
+    first.unsubscribe();
+    second.unsubscribe();
+    
+    assertEquals(0, metrics.subscribers(DiscoveryMetrics.SERVICE, "pong"));
+    assertEquals(1, metrics.retries(DiscoveryMetrics.SERVICE, "pong"));
+    assertEquals(metrics.wakeups(DiscoveryMetrics.SERVICE, "pong") - 1,
+        metrics.unchangedWakeups(DiscoveryMetrics.SERVICE, "pong"));
+  }
+  
+  @Test(timeout = 2000)
+  public void concurrentLookupsShouldShareOneCallToConsul() throws Exception {
+    
+    AtomicInteger serviceCalls = new AtomicInteger(0);
+    AtomicInteger valueCalls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      serviceCalls.incrementAndGet();
+      Thread.sleep(100);
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+    });
+    when(consulClient.keyValue(any(String.class))).thenAnswer(invocation -> {
+      valueCalls.incrementAndGet();
+      Thread.sleep(100);
+      return Optional.of(value("config/timeout", 5));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    
+    ExecutorService executor = Executors.newFixedThreadPool(20);
+    List<Future<List<Service>>> services = new ArrayList<>();
+    List<Future<Optional<Value>>> values = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      services.add(executor.submit(() -> discoveryService.getServices("pong")));
+      values.add(executor.submit(() -> discoveryService.getValue("config/timeout")));
+    }
+    for (int i = 0; i < 20; i++) {
+      assertEquals(Arrays.asList(SERVICE1), services.get(i).get());
+      assertEquals(Optional.of(value("config/timeout", 5)), values.get(i).get());
+    }
+    executor.shutdown();
+    
+    assertEquals(1, serviceCalls.get());
+    assertTrue("Expected about one call per key, was " + valueCalls.get(), valueCalls.get() <= 2);
+  }
+  
+  @Test(timeout = 2000)
+  public void expiredServicesShouldBeServedWhileTheyAreRefreshedInTheBackground() throws Exception {
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      if (calls.incrementAndGet() == 1) {
+        return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+      }
+      Thread.sleep(200);
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1, SERVICE2), Optional.of("2")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableCachePolicy("pong", CachePolicy.policy()
+        .ttl(50, MILLISECONDS)
+        .staleWhileRevalidate(1, TimeUnit.SECONDS)
+        .build());
+    
+    assertEquals(Arrays.asList(SERVICE1), discoveryService.getServices("pong"));
+    assertEquals(Arrays.asList(SERVICE1), discoveryService.getServices("pong"));
+    assertEquals(1, calls.get());
+    
+    Thread.sleep(80);
+    long start = System.nanoTime();
+    assertEquals(Arrays.asList(SERVICE1), discoveryService.getServices("pong"));
+    assertEquals(Arrays.asList(SERVICE1), discoveryService.getServices("pong"));
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(1000, MILLISECONDS)
+      .until(() -> discoveryService.getServices("pong").size() == 2);
+    assertEquals(2, calls.get());
+  }
+  
+  @Test(timeout = 3000)
+  public void revalidationWaitingForItsTokenShouldNotHoldTheWatchPool() throws Exception {
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      calls.incrementAndGet();
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+    });
+    
+    ExecutorService watchExecutor = Executors.newSingleThreadExecutor();
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i,
+        TimeUnit.MILLISECONDS, watchExecutor);
+    discoveryService.enableWatchLimits(WatchLimits.limits().maxRequestsPerSecond(1, 1).build());
+    discoveryService.enableCachePolicy(CachePolicy.policy()
+        .ttl(10, MILLISECONDS)
+        .staleWhileRevalidate(10, TimeUnit.SECONDS)
+        .build());
+    
+    discoveryService.getServices("pong");
+    Thread.sleep(20);
+    // The only token was taken by the lookup, the revalidation waits about a second for the next
+    discoveryService.getServices("pong");
+    
+    watchExecutor.submit(() -> {}).get(200, MILLISECONDS);
+    await().pollInterval(new Duration(10, MILLISECONDS))
+      .atMost(2, TimeUnit.SECONDS)
+      .untilAtomic(calls, equalTo(2));
+    watchExecutor.shutdownNow();
+  }
+  
+  @Test(timeout = 2000)
+  public void servicesPastTheirMaxStalenessShouldNotBeServed() throws Exception {
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      if (calls.incrementAndGet() == 1) {
+        return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+      }
+      throw new UnknownHostException();
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableCachePolicy(CachePolicy.policy()
+        .ttl(20, MILLISECONDS)
+        .staleWhileRevalidate(0, MILLISECONDS)
+        .maxStaleness(200, MILLISECONDS)
+        .build());
+    
+    assertEquals(Arrays.asList(SERVICE1), discoveryService.getServices("pong"));
+    Thread.sleep(50);
+    assertEquals(Arrays.asList(SERVICE1), discoveryService.getServices("pong"));
+    assertEquals(2, calls.get());
+    
+    Thread.sleep(200);
+    try {
+      discoveryService.getServices("pong");
+      fail("Expected the failure once the services are too stale");
+    } catch (UnknownHostException e) {
+    }
+  }
+  
+  @Test(timeout = 2000)
+  public void servicesShouldBeServedUntilTheirMaxStalenessWhenConsulAnswersWithAnError() throws Exception {
+    
+    AtomicInteger calls = new AtomicInteger(0);
+    ConsulClient consulClient = mockConsulClient();
+    // The ConsulClient logs a 500 response and returns no group
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation ->
+        calls.incrementAndGet() == 1
+            ? Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")))
+            : Optional.empty());
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableCachePolicy(CachePolicy.policy()
+        .ttl(20, MILLISECONDS)
+        .staleWhileRevalidate(20, MILLISECONDS)
+        .maxStaleness(200, MILLISECONDS)
+        .build());
+    
+    assertEquals(Arrays.asList(SERVICE1), discoveryService.getServices("pong"));
+    Thread.sleep(60);
+    assertEquals(Arrays.asList(SERVICE1), discoveryService.getServices("pong"));
+    assertEquals(2, calls.get());
+    
+    Thread.sleep(200);
+    try {
+      discoveryService.getServices("pong");
+      fail("Expected the failure once the services are too stale");
+    } catch (IOException e) {
+    }
+  }
+  
+  @Test(timeout = 2000)
+  public void leastRecentlyUsedServicesShouldBeEvictedButNotSubscribedOnes() throws Exception {
+    
+    Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      ServiceRequest request = (ServiceRequest) invocation.getArguments()[0];
+      calls.computeIfAbsent(request.serviceName(), name -> new AtomicInteger()).incrementAndGet();
+      if (!"0".equals(request.index())) {
+        Thread.sleep(50);
+      }
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+    });
+    
+    InMemoryMetrics metrics = new InMemoryMetrics();
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableMetrics(metrics);
+    discoveryService.enableCacheLimits(3, 1, TimeUnit.HOURS);
+    
+    Subscription subscription = discoveryService.subscribe("subscribed", update -> {});
+    for (int i = 1; i <= 6; i++) {
+      discoveryService.getServices("service-" + i);
+      Thread.sleep(5);
+    }
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(1000, MILLISECONDS)
+      .until(() -> metrics.evictions("service-1") == 1 && metrics.evictions("service-3") == 1);
+    assertEquals(0, metrics.evictions("subscribed"));
+    assertEquals(0, metrics.evictions("service-6"));
+    
+    discoveryService.getServices("service-6");
+    discoveryService.getServices("service-1");
+    assertEquals(1, calls.get("service-6").get());
+    assertEquals(2, calls.get("service-1").get());
+    assertEquals(1, metrics.cacheHits("service-6"));
+    assertEquals(2, metrics.cacheMisses("service-1"));
+    subscription.unsubscribe();
+  }
+  
+  @Test(timeout = 5000)
+  public void servicesShouldNotBeEvictedBetweenGettingTheirWatchAndSubscribing() throws Exception {
+    
+    Map<String, AtomicInteger> watches = new ConcurrentHashMap<>();
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      ServiceRequest request = (ServiceRequest) invocation.getArguments()[0];
+      if ("0".equals(request.index())) {
+        watches.computeIfAbsent(request.serviceName(), name -> new AtomicInteger()).incrementAndGet();
+      } else {
+        Thread.sleep(10_000);
+      }
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+    });
+    
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableCacheLimits(1, 1, TimeUnit.HOURS);
+    
+    ExecutorService executor = Executors.newFixedThreadPool(9);
+    List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    for (int round = 0; round < 20; round++) {
+      String serviceName = "pong-" + round;
+      List<Future<?>> futures = new ArrayList<>();
+      // Every lookup of another service goes past the limit and triggers an eviction
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 20; i++) {
+          discoveryService.getServices(serviceName + "-lookup-" + i);
+        }
+        return null;
+      }));
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(() -> subscriptions.add(discoveryService.subscribe(serviceName, update -> {}))));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    
+    Thread.sleep(100);
+    subscriptions.forEach(Subscription::unsubscribe);
+    executor.shutdownNow();
+    for (int round = 0; round < 20; round++) {
+      assertEquals("pong-" + round, 1, watches.get("pong-" + round).get());
+    }
+  }
+  
+  @Test(timeout = 3000)
+  public void subscribedServicesOutnumberingTheLimitShouldNotKeepTheSweepRunning() throws Exception {
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class))).thenAnswer(invocation -> {
+      ServiceRequest request = (ServiceRequest) invocation.getArguments()[0];
+      if (!"0".equals(request.index())) {
+        Thread.sleep(10_000);
+      }
+      return Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1")));
+    });
+    
+    AtomicInteger tasks = new AtomicInteger();
+    ExecutorService watchExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>()) {
+      @Override
+      protected void beforeExecute(Thread thread, Runnable runnable) {
+        tasks.incrementAndGet();
+      }
+    };
+    InMemoryMetrics metrics = new InMemoryMetrics();
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 1, i -> i,
+        TimeUnit.MILLISECONDS, watchExecutor);
+    discoveryService.enableMetrics(metrics);
+    discoveryService.enableCacheLimits(1, 1, TimeUnit.HOURS);
+    
+    AtomicInteger updates = new AtomicInteger();
+    List<Subscription> subscriptions = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      subscriptions.add(discoveryService.subscribe("subscribed-" + i, update -> updates.incrementAndGet()));
+    }
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(1000, MILLISECONDS)
+      .untilAtomic(updates, equalTo(3));
+    discoveryService.getServices("subscribed-0");
+    discoveryService.getServices("lookup-1");
+    discoveryService.getServices("lookup-2");
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(1000, MILLISECONDS)
+      .until(() -> metrics.evictions("lookup-1") == 1);
+    Thread.sleep(50);
+    int tasksBefore = tasks.get();
+    Thread.sleep(200);
+    
+    subscriptions.forEach(Subscription::unsubscribe);
+    watchExecutor.shutdownNow();
+    assertTrue("Sweeps kept running: " + (tasks.get() - tasksBefore), tasks.get() - tasksBefore < 5);
+    assertEquals(0, metrics.evictions("lookup-2"));
+    assertEquals(0, metrics.evictions("subscribed-0"));
+  }
+  
+  @Test(timeout = 2000)
+  public void idleServicesShouldBeEvicted() throws Exception {
+    
+    ConsulClient consulClient = mockConsulClient();
+    when(consulClient.discoverService(any(ServiceRequest.class)))
+      .thenReturn(Optional.of(new ServiceGroup(Arrays.asList(SERVICE1), Optional.of("1"))));
+    
+    InMemoryMetrics metrics = new InMemoryMetrics();
+    DiscoveryService discoveryService = new DiscoveryService(consulClient, 0, i -> i, TimeUnit.MILLISECONDS);
+    discoveryService.enableMetrics(metrics);
+    discoveryService.enableCacheLimits(100, 50, MILLISECONDS);
+    
+    discoveryService.getServices("idle");
+    Thread.sleep(100);
+    discoveryService.getServices("busy");
+    
+    await().pollInterval(new Duration(1, MILLISECONDS))
+      .atMost(500, MILLISECONDS)
+      .until(() -> metrics.evictions("idle") == 1);
+    assertEquals(0, metrics.evictions("busy"));
+  }
+  
+  // Watches call Consul asynchronously, the asynchronous calls run the stubbed blocking ones on
+  // their own threads like the OkHttp dispatcher would
+  private static ConsulClient mockConsulClient() throws IOException {
+    ConsulClient consulClient = mock(ConsulClient.class);
+    when(consulClient.discoverServiceAsync(any(ServiceRequest.class))).thenAnswer(invocation ->
+        async(() -> consulClient.discoverService(invocation.getArgumentAt(0, ServiceRequest.class))));
+    when(consulClient.keyValueGroupAsync(anyString(), anyString())).thenAnswer(invocation ->
+        async(() -> consulClient.keyValueGroup(invocation.getArgumentAt(0, String.class),
+            invocation.getArgumentAt(1, String.class))));
+    when(consulClient.keyValuesAsync(anyString(), anyString())).thenAnswer(invocation ->
+        async(() -> consulClient.keyValues(invocation.getArgumentAt(0, String.class),
+            invocation.getArgumentAt(1, String.class))));
+    return consulClient;
+  }
+  
+  private static <T> CompletableFuture<T> async(Callable<T> call) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return call.call();
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    }, CONSUL_CALLS);
+  }
+  
+  private static Value value(String key, int modifyIndex) {
+    return new Value(key, Optional.empty(), 1, modifyIndex, 0, 0, Optional.empty());
+  }
 }
@@ -0,0 +1,51 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.totango.discoveryagent.InMemoryMetrics.Histogram;
+
+public class InMemoryMetricsTest {
+
+  @Test
+  public void histogramShouldKeepPercentilesWithinAFactorOfTwo() {
+    InMemoryMetrics metrics = new InMemoryMetrics();
+    for (int i = 1; i <= 100; i++) {
+      metrics.httpCall("kv", i * 1000, 200);
+    }
+    metrics.httpCall("kv", 5000, 500);
+    
+    Histogram latency = metrics.httpLatency("kv");
+    assertEquals(101, latency.count());
+    assertEquals(100000, latency.maxNanos());
+    assertEquals(5055000, latency.totalNanos());
+    assertEquals(65535, latency.percentileNanos(0.5));
+    assertEquals(100000, latency.percentileNanos(1));
+    assertEquals(1, metrics.httpErrors("kv"));
+  }
+  
+  @Test
+  public void unknownNamesShouldReadAsZero() {
+    InMemoryMetrics metrics = new InMemoryMetrics();
+    assertEquals(0, metrics.httpLatency("kv").count());
+    assertEquals(0, metrics.picks("pong", "node/pong-1"));
+    assertEquals(0, metrics.subscribers(DiscoveryMetrics.KEY, "zip"));
+  }
+}
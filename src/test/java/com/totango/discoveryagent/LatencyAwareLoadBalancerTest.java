@@ -0,0 +1,166 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.totango.discoveryagent.model.Service;
+
+public class LatencyAwareLoadBalancerTest {
+
+  private static final String SERVICE_NAME = "pong";
+  
+  private static final Service SERVICE1 = new Service("pong-service-1", "192.168.25.111",
+      "pong", "pong", Arrays.asList("jvm"), "192.168.25.111", 9877);
+  
+  private static final Service SERVICE2 = new Service("pong-service-2", "192.168.25.112",
+      "pong", "pong", Arrays.asList("jvm"), "192.168.25.112", 9877);
+  
+  private static final Service SERVICE3 = new Service("pong-service-3", "192.168.25.113",
+      "pong", "pong", Arrays.asList("jvm"), "192.168.25.113", 9877);
+  
+  @Test
+  public void fasterEndpointShouldBePicked() throws Exception {
+    
+    LatencyAwareLoadBalancer balancer = balancer(SERVICE1, SERVICE2);
+    balancer.endpoints().stats(0).recordCall(50_000_000, false, 0.2);
+    balancer.endpoints().stats(1).recordCall(1_000_000, false, 0.2);
+    
+    for (int i = 0; i < 20; i++) {
+      assertEquals(SERVICE2.getServiceAddress(), balancer.withNextEndpoint((host, port) -> host));
+    }
+  }
+  
+  @Test
+  public void failingEndpointShouldBeAvoided() throws Exception {
+    
+    LatencyAwareLoadBalancer balancer = balancer(SERVICE1, SERVICE2);
+    balancer.endpoints().stats(0).recordCall(1_000_000, true, 0.2);
+    balancer.endpoints().stats(1).recordCall(2_000_000, false, 0.2);
+    
+    for (int i = 0; i < 20; i++) {
+      assertEquals(SERVICE2.getServiceAddress(), balancer.withNextEndpoint((host, port) -> host));
+    }
+  }
+  
+  @Test
+  public void endpointFailingFastShouldNotLookFasterThanAHealthyOne() throws Exception {
+    
+    LatencyAwareLoadBalancer balancer = balancer(SERVICE1, SERVICE2);
+    EndpointStats failing = balancer.endpoints().stats(0);
+    EndpointStats healthy = balancer.endpoints().stats(1);
+    for (int i = 0; i < 10; i++) {
+      balancer.callStarted(healthy);
+      balancer.callEnded(healthy, System.nanoTime() - 50_000_000, null);
+      balancer.callStarted(failing);
+      balancer.callEnded(failing, System.nanoTime() - 1_000_000, new IllegalStateException());
+    }
+    
+    for (int i = 0; i < 20; i++) {
+      assertEquals(SERVICE2.getServiceAddress(), balancer.withNextEndpoint((host, port) -> host));
+    }
+  }
+  
+  @Test
+  public void oneSlowCallShouldNotKeepWeighingOnFailures() throws Exception {
+    
+    LatencyAwareLoadBalancer balancer = balancer(SERVICE1, SERVICE2);
+    EndpointStats failing = balancer.endpoints().stats(0);
+    EndpointStats healthy = balancer.endpoints().stats(1);
+    balancer.callStarted(healthy);
+    balancer.callEnded(healthy, System.nanoTime() - 10_000_000_000L, null);
+    for (int i = 0; i < 50; i++) {
+      balancer.callStarted(healthy);
+      balancer.callEnded(healthy, System.nanoTime() - 1_000_000, null);
+    }
+    
+    balancer.callStarted(failing);
+    balancer.callEnded(failing, System.nanoTime() - 1_000_000, new IllegalStateException());
+    
+    assertTrue("Failure recorded as " + failing.latency(), failing.latency() < 10_000_000);
+  }
+  
+  @Test
+  public void busyEndpointWithoutStatsShouldNotBePicked() throws Exception {
+    
+    LatencyAwareLoadBalancer balancer = balancer(SERVICE1, SERVICE2);
+    EndpointStats unknown = balancer.endpoints().stats(0);
+    for (int i = 0; i < 5; i++) {
+      unknown.callStarted();
+    }
+    balancer.endpoints().stats(1).recordCall(10_000_000, false, 0.2);
+    
+    for (int i = 0; i < 20; i++) {
+      assertEquals(SERVICE2.getServiceAddress(), balancer.withNextEndpoint((host, port) -> host));
+    }
+  }
+  
+  @Test
+  public void failedCallShouldBeRecorded() throws Exception {
+    
+    LatencyAwareLoadBalancer balancer = balancer(SERVICE1);
+    
+    try {
+      balancer.withNextEndpoint((host, port) -> {
+        throw new IllegalStateException();
+      });
+    } catch (IllegalStateException e) {
+    }
+    
+    assertEquals(1.0, balancer.endpoints().stats(0).errorRate(), 0);
+    assertEquals(0, balancer.endpoints().stats(0).inFlight());
+  }
+  
+  @Test
+  public void singleFailureAfterSuccessesShouldOnlyRaiseTheErrorRate() throws Exception {
+    
+    EndpointStats stats = new EndpointStats();
+    stats.recordCall(1_000_000, false, 0.2);
+    stats.recordCall(1_000_000, true, 0.2);
+    
+    assertEquals(0.2, stats.errorRate(), 0.0001);
+  }
+  
+  @Test
+  public void statsShouldSurviveServiceUpdates() throws Exception {
+    
+    LatencyAwareLoadBalancer balancer = balancer(SERVICE1, SERVICE2);
+    EndpointStats service2Stats = balancer.endpoints().stats(1);
+    
+    balancer.update(Arrays.asList(SERVICE3, SERVICE2));
+    
+    assertSame(service2Stats, balancer.endpoints().stats(1));
+  }
+  
+  private LatencyAwareLoadBalancer balancer(Service... services) throws Exception {
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(services));
+    
+    LatencyAwareLoadBalancer balancer = new LatencyAwareLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.init();
+    return balancer;
+  }
+}
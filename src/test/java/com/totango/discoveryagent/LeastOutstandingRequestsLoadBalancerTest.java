@@ -0,0 +1,95 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.totango.discoveryagent.model.Service;
+
+public class LeastOutstandingRequestsLoadBalancerTest {
+
+  private static final String SERVICE_NAME = "pong";
+  
+  private static final Service SERVICE1 = new Service("pong-service-1", "192.168.25.111",
+      "pong", "pong", Arrays.asList("jvm"), "192.168.25.111", 9877);
+  
+  private static final Service SERVICE2 = new Service("pong-service-2", "192.168.25.112",
+      "pong", "pong", Arrays.asList("jvm"), "192.168.25.112", 9877);
+  
+  @Test(expected=NoServiceAvailable.class)
+  public void emptyServiceListShouldThrowNoServiceAvailable() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    
+    LeastOutstandingRequestsLoadBalancer balancer = new LeastOutstandingRequestsLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.init();
+    
+    balancer.withNextEndpoint((host, port) -> "");
+  }
+  
+  @Test
+  public void busyEndpointShouldBeAvoided() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(SERVICE1, SERVICE2));
+    
+    LeastOutstandingRequestsLoadBalancer balancer = new LeastOutstandingRequestsLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.init();
+    
+    for (int i = 0; i < 20; i++) {
+      balancer.withNextEndpoint((busyHost, busyPort) -> {
+        assertNotEquals(busyHost, nextHost(balancer));
+        return null;
+      });
+    }
+  }
+  
+  @Test
+  public void failedCallShouldNotLeaveTheEndpointBusy() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(SERVICE1));
+    
+    LeastOutstandingRequestsLoadBalancer balancer = new LeastOutstandingRequestsLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.init();
+    
+    try {
+      balancer.withNextEndpoint((host, port) -> {
+        throw new IllegalStateException();
+      });
+    } catch (IllegalStateException e) {
+    }
+    
+    assertEquals(0, balancer.endpoints().stats(0).inFlight());
+  }
+  
+  private String nextHost(LoadBalancer balancer) {
+    try {
+      return balancer.withNextEndpoint((host, port) -> host);
+    } catch (NoServiceAvailable e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.totango.discoveryagent.model.Service;
+
+public class LocalityAwareLoadBalancerTest {
+
+  private static final String SERVICE_NAME = "pong";
+  
+  private static final Service LOCAL1 = new Service("pong-service-1", "192.168.25.111",
+      "pong", "pong", Arrays.asList("jvm"), "192.168.25.111", 9877, "dc1");
+  
+  private static final Service LOCAL2 = new Service("pong-service-2", "192.168.25.112",
+      "pong", "pong", Arrays.asList("jvm"), "192.168.25.112", 9877, "dc1");
+  
+  private static final Service REMOTE = new Service("pong-service-3", "10.0.25.113",
+      "pong", "pong", Arrays.asList("jvm"), "10.0.25.113", 9877, "dc2");
+  
+  @Test
+  public void localEndpointsShouldBePreferred() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString(), anyListOf(String.class)))
+      .thenReturn(Arrays.asList(REMOTE, LOCAL1, LOCAL2));
+    
+    LocalityAwareLoadBalancer balancer = new LocalityAwareLoadBalancer(discoveryService, SERVICE_NAME,
+        "dc1", Arrays.asList("dc2"), 2);
+    balancer.init();
+    
+    Set<String> hosts = new HashSet<>();
+    for (int i = 0; i < 10; i++) {
+      hosts.add(balancer.withNextEndpoint((host, port) -> host));
+    }
+    assertEquals(new HashSet<>(Arrays.asList("192.168.25.111", "192.168.25.112")), hosts);
+  }
+  
+  @Test
+  public void remoteEndpointsShouldBeUsedWhenLocalCapacityIsLow() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString(), anyListOf(String.class)))
+      .thenReturn(Arrays.asList(REMOTE, LOCAL1));
+    
+    LocalityAwareLoadBalancer balancer = new LocalityAwareLoadBalancer(discoveryService, SERVICE_NAME,
+        "dc1", Arrays.asList("dc2"), 2);
+    balancer.init();
+    
+    Set<String> hosts = new HashSet<>();
+    for (int i = 0; i < 10; i++) {
+      hosts.add(balancer.withNextEndpoint((host, port) -> host));
+    }
+    assertTrue(hosts.contains("10.0.25.113"));
+    assertTrue(hosts.contains("192.168.25.111"));
+  }
+  
+  @Test
+  public void ejectedLocalEndpointsShouldNotCountAsLocalCapacity() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString(), anyListOf(String.class)))
+      .thenReturn(Arrays.asList(REMOTE, LOCAL1, LOCAL2));
+    
+    LocalityAwareLoadBalancer balancer = new LocalityAwareLoadBalancer(discoveryService, SERVICE_NAME,
+        "dc1", Arrays.asList("dc2"), 2);
+    balancer.enableOutlierEjection(OutlierEjection.ejection()
+        .afterConsecutiveFailures(1)
+        .baseEjectionTime(1, TimeUnit.MINUTES)
+        .build());
+    balancer.init();
+    
+    try {
+      balancer.withNextEndpoint((host, port) -> {
+        throw new IllegalStateException(host);
+      });
+    } catch (IllegalStateException e) {
+    }
+    
+    Set<String> hosts = new HashSet<>();
+    for (int i = 0; i < 10; i++) {
+      hosts.add(balancer.withNextEndpoint((host, port) -> host));
+    }
+    assertTrue(hosts.contains("10.0.25.113"));
+    assertEquals(2, hosts.size());
+  }
+  
+  @Test
+  public void ejectedLocalEndpointsShouldBeSkippedWhileThereIsEnoughLocalCapacity() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString(), anyListOf(String.class)))
+      .thenReturn(Arrays.asList(REMOTE, LOCAL1, LOCAL2));
+    
+    LocalityAwareLoadBalancer balancer = new LocalityAwareLoadBalancer(discoveryService, SERVICE_NAME,
+        "dc1", Arrays.asList("dc2"), 1);
+    balancer.enableOutlierEjection(OutlierEjection.ejection()
+        .afterConsecutiveFailures(1)
+        .baseEjectionTime(1, TimeUnit.MINUTES)
+        .build());
+    balancer.init();
+    
+    String ejected = null;
+    try {
+      balancer.withNextEndpoint((host, port) -> {
+        throw new IllegalStateException(host);
+      });
+    } catch (IllegalStateException e) {
+      ejected = e.getMessage();
+    }
+    
+    Set<String> hosts = new HashSet<>();
+    for (int i = 0; i < 10; i++) {
+      hosts.add(balancer.withNextEndpoint((host, port) -> host));
+    }
+    Set<String> locals = new HashSet<>(Arrays.asList("192.168.25.111", "192.168.25.112"));
+    locals.remove(ejected);
+    assertEquals(locals, hosts);
+  }
+  
+  @Test
+  public void allKnownDatacentersShouldBeWatchedByDefault() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.datacenters()).thenReturn(Arrays.asList("dc2", "dc1", "dc3"));
+    List<String> expected = Arrays.asList("dc1", "dc2", "dc3");
+    when(discoveryService.getServices(eq(SERVICE_NAME), eq(expected))).thenReturn(Arrays.asList(REMOTE));
+    
+    LocalityAwareLoadBalancer balancer = new LocalityAwareLoadBalancer(discoveryService, SERVICE_NAME, "dc1", 1);
+    balancer.init();
+    
+    assertEquals("10.0.25.113", balancer.withNextEndpoint((host, port) -> host));
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void minLocalEndpointsShouldBePositive() throws Exception {
+    new LocalityAwareLoadBalancer(mock(DiscoveryService.class), SERVICE_NAME, "dc1", 0);
+  }
+}
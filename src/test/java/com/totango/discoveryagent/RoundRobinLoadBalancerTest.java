@@ -20,14 +20,20 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.totango.discoveryagent.DiscoveryService;
 import com.totango.discoveryagent.NoServiceAvailable;
+import com.totango.discoveryagent.RoundRobinLoadBalancer.Function2;
 import com.totango.discoveryagent.RoundRobinLoadBalancer;
 import com.totango.discoveryagent.model.Service;
 
@@ -95,4 +101,227 @@ public class RoundRobinLoadBalancerTest {
       return null;
     });
   }
+  
+  @Test
+  public void counterOverflowShouldKeepPickingServices() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(SERVICE1, SERVICE2));
+    
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME,
+        new SharedRoundRobinCounter(Integer.MAX_VALUE - 1));
+    balancer.init();
+    
+    Map<String, Integer> picks = new HashMap<>();
+    for (int i = 0; i < 4; i++) {
+      picks.merge(balancer.withNextEndpoint((host, port) -> host), 1, Integer::sum);
+    }
+    
+    assertEquals(new Integer(2), picks.get(SERVICE1.getServiceAddress()));
+    assertEquals(new Integer(2), picks.get(SERVICE2.getServiceAddress()));
+  }
+  
+  @Test
+  public void countersShouldPickEvenlyAcrossTheOverflow() throws Exception {
+    assertEvenAcrossOverflow(new SharedRoundRobinCounter(Integer.MAX_VALUE - 10));
+    assertEvenAcrossOverflow(new StripedRoundRobinCounter(1, Integer.MAX_VALUE - 10));
+  }
+  
+  // 2^31 is not a multiple of 3, so the overflow may cost one pick of imbalance but no more
+  private static void assertEvenAcrossOverflow(RoundRobinCounter counter) {
+    int[] picks = new int[3];
+    for (int i = 0; i < 30; i++) {
+      int next = counter.next(picks.length);
+      assertTrue("Out of range: " + next, next >= 0 && next < picks.length);
+      picks[next]++;
+    }
+    for (int count : picks) {
+      assertTrue("Uneven picks: " + Arrays.toString(picks), Math.abs(count - 10) <= 1);
+    }
+  }
+  
+  @Test
+  public void stripedCounterShouldSpreadLoadEvenly() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(SERVICE1, SERVICE2));
+    
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME,
+        RoundRobinCounter.striped());
+    balancer.init();
+    
+    Map<String, Integer> picks = new HashMap<>();
+    for (int i = 0; i < 100; i++) {
+      String host = balancer.withNextEndpoint((h, port) -> h);
+      picks.merge(host, 1, Integer::sum);
+    }
+    
+    assertEquals(new Integer(50), picks.get(SERVICE1.getServiceAddress()));
+    assertEquals(new Integer(50), picks.get(SERVICE2.getServiceAddress()));
+  }
+  
+  @Test
+  public void withNextAddressShouldProvideTheSocketAddress() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(SERVICE1));
+    
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.init();
+    
+    InetSocketAddress address = balancer.withNextAddress(socketAddress -> socketAddress);
+    assertEquals(new InetSocketAddress(SERVICE1.getServiceAddress(), SERVICE1.getServicePort()), address);
+  }
+  
+  @Test
+  public void balancersOnlyPickingEndpointsShouldAlsoProvideAddresses() throws Exception {
+    
+    LoadBalancer balancer = new LoadBalancer() {
+      @Override
+      public <T> T withNextEndpoint(Function2<String, Integer, T> func) {
+        return func.apply(SERVICE1.getServiceAddress(), SERVICE1.getServicePort());
+      }
+    };
+    balancer.init();
+    
+    InetSocketAddress address = balancer.withNextAddress(socketAddress -> socketAddress);
+    assertEquals(new InetSocketAddress(SERVICE1.getServiceAddress(), SERVICE1.getServicePort()), address);
+  }
+  
+  @Test
+  public void withNextAddressShouldLeaveHostNamesUnresolved() throws Exception {
+    
+    Service namedService = new Service("pong-service-3", "192.168.25.113",
+        "pong", "pong", Arrays.asList("jvm"), "pong.example.invalid", 9877);
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(namedService));
+    
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.init();
+    
+    InetSocketAddress address = balancer.withNextAddress(socketAddress -> socketAddress);
+    assertTrue(address.isUnresolved());
+    assertEquals("pong.example.invalid", address.getHostString());
+    assertEquals(9877, address.getPort());
+  }
+  
+  @Test
+  public void servicesWithoutAnyAddressShouldBeSkipped() throws Exception {
+    
+    Service noAddressService = new Service("pong-service-3", "",
+        "pong", "pong", Arrays.asList("jvm"), "", 9877);
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(noAddressService, SERVICE1));
+    
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.init();
+    
+    for (int i = 0; i < 4; i++) {
+      assertEquals(SERVICE1.getServiceAddress(), balancer.withNextEndpoint((host, port) -> host));
+    }
+  }
+  
+  @Test
+  public void emptyServiceAddressShouldFallbackToNodeAddress() throws Exception {
+    
+    Service noAddressService = new Service("pong-service-3", "192.168.25.113",
+        "pong", "pong", Arrays.asList("jvm"), "", 9877);
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(noAddressService));
+    
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.init();
+    
+    String host = balancer.withNextEndpoint((h, port) -> h);
+    assertEquals("192.168.25.113", host);
+  }
+  
+  @Test
+  public void failingEndpointShouldBeEjectedAndReinstated() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(SERVICE1, SERVICE2));
+    
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.enableOutlierEjection(OutlierEjection.ejection()
+        .afterConsecutiveFailures(2)
+        .baseEjectionTime(50, TimeUnit.MILLISECONDS)
+        .build());
+    balancer.init();
+    
+    for (int i = 0; i < 4; i++) {
+      try {
+        balancer.withNextEndpoint((host, port) -> {
+          if (host.equals(SERVICE1.getServiceAddress())) {
+            throw new IllegalStateException();
+          }
+          return host;
+        });
+      } catch (IllegalStateException e) {
+      }
+    }
+    
+    for (int i = 0; i < 10; i++) {
+      assertEquals(SERVICE2.getServiceAddress(), balancer.withNextEndpoint((host, port) -> host));
+    }
+    
+    Thread.sleep(60);
+    
+    Map<String, Integer> picks = new HashMap<>();
+    for (int i = 0; i < 10; i++) {
+      picks.merge(balancer.withNextEndpoint((host, port) -> host), 1, Integer::sum);
+    }
+    assertEquals(new Integer(5), picks.get(SERVICE1.getServiceAddress()));
+  }
+  
+  @Test
+  public void allEndpointsEjectedShouldStillPickOne() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(SERVICE1));
+    
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME);
+    balancer.enableOutlierEjection(OutlierEjection.ejection()
+        .afterConsecutiveFailures(1)
+        .baseEjectionTime(1, TimeUnit.MINUTES)
+        .build());
+    balancer.init();
+    
+    try {
+      balancer.withNextEndpoint((host, port) -> {
+        throw new IllegalStateException();
+      });
+    } catch (IllegalStateException e) {
+    }
+    
+    assertEquals(SERVICE1.getServiceAddress(), balancer.withNextEndpoint((host, port) -> host));
+  }
+  
+  @Test
+  public void picksShouldBeReportedByEndpoint() throws Exception {
+    
+    DiscoveryService discoveryService = mock(DiscoveryService.class);
+    when(discoveryService.getServices(anyString())).thenReturn(Arrays.asList(SERVICE1, SERVICE2));
+    
+    InMemoryMetrics metrics = new InMemoryMetrics();
+    RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer(discoveryService, SERVICE_NAME,
+        new SharedRoundRobinCounter(0));
+    balancer.enableMetrics(metrics);
+    
+    try {
+      balancer.withNextEndpoint((host, port) -> host);
+    } catch (NoServiceAvailable e) {
+    }
+    balancer.init();
+    for (int i = 0; i < 4; i++) {
+      balancer.withNextEndpoint((host, port) -> host);
+    }
+    
+    assertEquals(1, metrics.noServiceAvailableCount(SERVICE_NAME));
+    assertEquals(2, metrics.picks(SERVICE_NAME, ServiceDiff.key(SERVICE1)));
+    assertEquals(2, metrics.picks(SERVICE_NAME, ServiceDiff.key(SERVICE2)));
+  }
 }
@@ -0,0 +1,49 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static com.totango.discoveryagent.ServiceRequest.request;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ServiceRequestTest {
+
+  @Test
+  public void tagsGivenInAnotherOrderShouldMakeAnEqualRequest() {
+    ServiceRequest request = request().forService("pong").withTags("primary", "jvm", "primary").build();
+    ServiceRequest other = request().forService("pong").withTags("jvm", "primary").build();
+    
+    assertEquals(other, request);
+    assertEquals(other.hashCode(), request.hashCode());
+    assertEquals(Arrays.asList("jvm", "primary"), request.tags());
+  }
+  
+  @Test
+  public void withTagShouldReplaceTheTags() {
+    ServiceRequest request = request().forService("pong").withTags("jvm", "primary").build()
+        .toBuilder()
+        .withTag("secondary")
+        .build();
+    
+    assertEquals(Collections.singletonList("secondary"), request.tags());
+    assertEquals(Collections.emptyList(), request.toBuilder().withTag(null).build().tags());
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static com.totango.discoveryagent.ResourceLoader.load;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.totango.discoveryagent.gson.ServiceTypeAdapter;
+import com.totango.discoveryagent.model.Service;
+
+public class ServiceTypeAdapterTest {
+
+  public static final Type SERVICE_LIST_TYPE = new TypeToken<List<Service>>(){}.getType();
+  
+  private static final String SERVICE_HEALTH_2_NODES_JSON = load("v1_health_service_pong-2-services.json");
+  
+  private static final Service SERVICE1 = new Service("pong-service-1", "192.168.25.111", "pong",
+      "pong", Arrays.asList("jvm"), "192.168.25.111", 9877);
+
+  private static final Service SERVICE2 = new Service("pong-service-2", "192.168.25.112", "pong",
+      "pong", Arrays.asList("jvm"), "192.168.25.112", 9877);
+  
+  private final Gson gson = new GsonBuilder()
+      .registerTypeAdapter(Service.class, new ServiceTypeAdapter())
+      .create();
+  
+  @Test
+  public void healthResponseShouldReturnServicesAndSkipChecks() {
+    List<Service> services = gson.fromJson(SERVICE_HEALTH_2_NODES_JSON, SERVICE_LIST_TYPE);
+    assertEquals(Arrays.asList(SERVICE1, SERVICE2), services);
+  }
+  
+  @Test
+  public void nullTagsShouldReturnEmptyTagList() {
+    String json = "[{\"Node\":{\"Node\":\"n1\",\"Address\":\"10.0.0.1\",\"Meta\":{\"a\":\"b\"}},"
+        + "\"Service\":{\"ID\":\"pong\",\"Service\":\"pong\",\"Tags\":null,\"Address\":\"10.0.0.1\",\"Port\":80},"
+        + "\"Checks\":[]}]";
+    
+    List<Service> services = gson.fromJson(json, SERVICE_LIST_TYPE);
+    Service expected = new Service("n1", "10.0.0.1", "pong", "pong", Collections.emptyList(), "10.0.0.1", 80);
+    assertEquals(Arrays.asList(expected), services);
+  }
+  
+  @Test
+  public void catalogResponseShouldReturnServices() {
+    String json = "[{\"ID\":\"40e4a748\",\"Node\":\"n1\",\"Address\":\"10.0.0.1\",\"Datacenter\":\"dc1\","
+        + "\"NodeMeta\":{\"rack\":\"r1\"},\"ServiceID\":\"pong-1\",\"ServiceName\":\"pong\","
+        + "\"ServiceTags\":[\"jvm\"],\"ServiceAddress\":\"10.0.0.2\",\"ServicePort\":80,\"ServiceMeta\":{}}]";
+    
+    List<Service> services = gson.fromJson(json, SERVICE_LIST_TYPE);
+    Service expected = new Service("n1", "10.0.0.1", "pong-1", "pong", Arrays.asList("jvm"), "10.0.0.2", 80, "dc1");
+    assertEquals(Arrays.asList(expected), services);
+  }
+  
+  @Test
+  public void writtenServiceShouldBeReadBack() {
+    String json = gson.toJson(SERVICE1);
+    assertEquals(SERVICE1, gson.fromJson(json, Service.class));
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.gson.reflect.TypeToken;
+import com.totango.discoveryagent.model.Value;
+import com.totango.discoveryagent.model.ValueCodec;
+
+public class ValueTest {
+
+  @Test
+  public void decodedStringShouldBeMemoized() {
+    Value value = value("test");
+    
+    assertEquals(Optional.of("test"), value.getValueAsString());
+    assertSame(value.getValueAsString().get(), value.getValueAsString().get());
+    assertSame(value.getDecodedValue().get(), value.getDecodedValue().get());
+  }
+  
+  @Test
+  public void codecShouldDecodeOncePerValue() {
+    Value value = value("42");
+    AtomicInteger decodes = new AtomicInteger();
+    ValueCodec<Integer> codec = bytes -> {
+      decodes.incrementAndGet();
+      return ValueCodec.integer().decode(bytes);
+    };
+    
+    assertEquals(Optional.of(42), value.getValueAs(codec));
+    assertEquals(Optional.of(42), value.getValueAs(codec));
+    assertEquals(1, decodes.get());
+  }
+  
+  @Test
+  public void nullResultShouldAlsoBeDecodedOnce() {
+    Value value = value("null");
+    AtomicInteger decodes = new AtomicInteger();
+    ValueCodec<Map<String, Integer>> codec = bytes -> {
+      decodes.incrementAndGet();
+      return null;
+    };
+    
+    assertFalse(value.getValueAs(codec).isPresent());
+    assertFalse(value.getValueAs(codec).isPresent());
+    assertEquals(1, decodes.get());
+  }
+  
+  @Test
+  public void builtInCodecsShouldDecodeTypedValues() {
+    assertEquals(Optional.of(7L), value(" 7\n").getValueAs(ValueCodec.longValue()));
+    assertEquals(Optional.of(Duration.ofSeconds(30)), value("PT30S").getValueAs(ValueCodec.duration()));
+    assertEquals("b", value("a=b\nc=d").getValueAs(ValueCodec.properties()).get().getProperty("a"));
+    
+    Map<String, Integer> json = value("{\"a\":1}")
+        .getValueAs(ValueCodec.<Map<String, Integer>>json(new TypeToken<Map<String, Integer>>(){}.getType()))
+        .get();
+    assertEquals(Integer.valueOf(1), json.get("a"));
+  }
+  
+  @Test
+  public void jsonCodecsOfTheSameTypeShouldShareTheCachedResult() {
+    Value value = value("{\"a\":1}");
+    assertSame(value.getValueAs(ValueCodec.json(Map.class)).get(), value.getValueAs(ValueCodec.json(Map.class)).get());
+  }
+  
+  @Test
+  public void missingValueShouldNotBeDecoded() {
+    Value value = new Value("zip", Optional.empty(), 1, 1, 0, 0, Optional.empty());
+    assertFalse(value.getValueAs(ValueCodec.integer()).isPresent());
+    assertFalse(value.getValueAsString().isPresent());
+  }
+  
+  @Test
+  public void equalValuesShouldHaveTheSameHashCode() {
+    assertEquals(value("test").hashCode(), value("test").hashCode());
+  }
+  
+  private static Value value(String text) {
+    byte[] encoded = Base64.getEncoder().encode(text.getBytes(StandardCharsets.UTF_8));
+    return new Value("zip", Optional.of(encoded), 1, 1, 0, 0, Optional.empty());
+  }
+}
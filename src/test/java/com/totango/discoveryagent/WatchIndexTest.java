@@ -0,0 +1,61 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WatchIndexTest {
+
+  @Test
+  public void growingIndexShouldBeKept() {
+    AtomicInteger resets = new AtomicInteger();
+    WatchIndex watchIndex = new WatchIndex("test", resets::incrementAndGet);
+    
+    assertEquals(Optional.of("7"), watchIndex.next("0", Optional.of("7")));
+    assertEquals(Optional.of("7"), watchIndex.next("7", Optional.of("7")));
+    assertEquals(Optional.empty(), watchIndex.next("7", Optional.empty()));
+    assertEquals(0, resets.get());
+    assertEquals(0, watchIndex.backoffNanos());
+  }
+  
+  @Test
+  public void backwardsZeroOrInvalidIndexShouldResetWithGrowingBackoff() {
+    AtomicInteger resets = new AtomicInteger();
+    WatchIndex watchIndex = new WatchIndex("test", resets::incrementAndGet);
+    
+    assertEquals(Optional.of("0"), watchIndex.next("100", Optional.of("3")));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), watchIndex.backoffNanos());
+    assertEquals(Optional.of("0"), watchIndex.next("0", Optional.of("0")));
+    assertEquals(TimeUnit.SECONDS.toNanos(1), watchIndex.backoffNanos());
+    assertEquals(Optional.of("0"), watchIndex.next("0", Optional.of("abc")));
+    assertEquals(3, resets.get());
+    
+    for (int i = 0; i < 40; i++) {
+      watchIndex.next("0", Optional.of("-1"));
+    }
+    assertEquals(TimeUnit.SECONDS.toNanos(30), watchIndex.backoffNanos());
+    
+    assertEquals(Optional.of("5"), watchIndex.next("0", Optional.of("5")));
+    assertEquals(0, watchIndex.backoffNanos());
+  }
+}
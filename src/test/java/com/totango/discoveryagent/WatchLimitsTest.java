@@ -0,0 +1,75 @@
+/**
+ *
+ * Copyright (C) 2015 Totango , Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.totango.discoveryagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WatchLimitsTest {
+
+  @Test
+  public void tokenBucketShouldAllowTheBurstAndThenSpaceRequests() {
+    WatchLimits limits = WatchLimits.limits().maxRequestsPerSecond(10, 3).build();
+    
+    assertEquals(0, limits.reserve());
+    assertEquals(0, limits.reserve());
+    assertEquals(0, limits.reserve());
+    
+    long wait = limits.reserve();
+    assertTrue("Expected to wait about 100ms, was " + wait, wait > TimeUnit.MILLISECONDS.toNanos(80));
+    long nextWait = limits.reserve();
+    assertTrue("Expected to wait about 200ms, was " + nextWait, nextWait > TimeUnit.MILLISECONDS.toNanos(180));
+  }
+  
+  @Test
+  public void noLimitsShouldNeverWait() {
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, WatchLimits.NONE.reserve());
+    }
+  }
+  
+  @Test
+  public void wakeupShouldWaitForTheRestOfTheMinimumInterval() {
+    WatchLimits limits = WatchLimits.limits().minWakeupInterval(1, TimeUnit.SECONDS).build();
+    
+    long delay = limits.nextWakeupDelay(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(300));
+    assertTrue(delay <= TimeUnit.MILLISECONDS.toNanos(700));
+    assertTrue(delay > TimeUnit.MILLISECONDS.toNanos(600));
+    
+    long minimumDelay = limits.nextWakeupDelay(System.nanoTime() - TimeUnit.SECONDS.toNanos(5));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(10), minimumDelay);
+  }
+  
+  @Test
+  public void jitterShouldOnlyStretchTheDelay() {
+    WatchLimits limits = WatchLimits.limits().jitter(0.5).build();
+    
+    for (int i = 0; i < 100; i++) {
+      long delay = limits.withJitter(1000);
+      assertTrue(delay >= 1000 && delay <= 1500);
+    }
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void jitterAboveOneShouldBeRejected() {
+    WatchLimits.limits().jitter(2).build();
+  }
+}